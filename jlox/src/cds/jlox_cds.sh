@@ -0,0 +1,25 @@
+#!/bin/bash
+# Runs jlox from its deploy jar with the class data sharing archive that //:jlox_cds_archive
+# dumped, so the classes a short script needs are mapped in rather than loaded and verified.
+#
+# The archive only matches the JDK that dumped it, Bazel's current Java runtime, so //:cds_scripts
+# substitutes that runtime's path for @JAVA@ and this runs it from the runfiles. If the archive
+# still does not match, such as because the jar has changed, the JVM warns and starts without it;
+# run with JLOX_CDS_LOG=1 to see everything it does with the archive.
+set -euo pipefail
+
+export RUNFILES_DIR="${RUNFILES_DIR:-$0.runfiles}"
+runfiles="$RUNFILES_DIR/__main__"
+java="@JAVA@"
+case "$java" in
+  /*) ;;
+  external/*) java="$RUNFILES_DIR/${java#external/}" ;;
+  *) java="$runfiles/$java" ;;
+esac
+
+log=()
+if [[ -n "${JLOX_CDS_LOG:-}" ]]; then
+  log=(-Xlog:cds)
+fi
+exec "$java" -XX:SharedArchiveFile="$runfiles/jlox.jsa" "${log[@]}" \
+  -cp "$runfiles/jlox_deploy.jar" com.zacharyhirsch.lox.Lox "$@"
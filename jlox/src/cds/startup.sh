@@ -0,0 +1,42 @@
+#!/bin/bash
+# Compares how long jlox takes to run a short script with and without the class data sharing
+# archive, on the JDK that dumped it. Usage: bazel run //:cds_startup -- [runs] [script]
+set -euo pipefail
+
+export RUNFILES_DIR="${RUNFILES_DIR:-$0.runfiles}"
+runfiles="$RUNFILES_DIR/__main__"
+runs="${1:-20}"
+script="${2:-$runfiles/examples/a.lox}"
+java="@JAVA@"
+case "$java" in
+  /*) ;;
+  external/*) java="$RUNFILES_DIR/${java#external/}" ;;
+  *) java="$runfiles/$java" ;;
+esac
+jar="$runfiles/jlox_deploy.jar"
+
+# With -Xshare:on the JVM fails rather than quietly running without an archive it cannot map.
+if ! check=$("$java" -XX:SharedArchiveFile="$runfiles/jlox.jsa" -Xshare:on \
+    -cp "$jar" com.zacharyhirsch.lox.Lox "$script" 2>&1); then
+  echo "$check" >&2
+  echo "The archive cannot be used, so there is nothing to compare." >&2
+  exit 1
+fi
+
+# Prints the mean wall time of running the rest of the arguments, in milliseconds.
+measure() {
+  "$@" "$script" > /dev/null
+  local start end
+  start=$(date +%s%N)
+  for ((i = 0; i < runs; i++)); do
+    "$@" "$script" > /dev/null
+  done
+  end=$(date +%s%N)
+  echo $(((end - start) / runs / 1000000))
+}
+
+without=$(measure "$java" -cp "$jar" com.zacharyhirsch.lox.Lox)
+with=$(measure "$runfiles/jlox_cds")
+echo "$(basename "$script"), mean of $runs runs:"
+echo "  without archive: $without ms"
+echo "  with archive:    $with ms"
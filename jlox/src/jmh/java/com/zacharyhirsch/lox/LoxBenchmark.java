@@ -0,0 +1,115 @@
+package com.zacharyhirsch.lox;
+
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures each phase of the pipeline on its own and end to end. Run with {@code -prof gc} (the
+ * default for the Bazel target) to get allocation rates alongside the timings.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoxBenchmark {
+
+  @Param({"small", "medium", "large"})
+  public String size;
+
+  private String source;
+  private PackedTokens tokens;
+  private PackedTokens expressionTokens;
+  private List<Stmt> statements;
+  private Chunk chunk;
+  private String[] globals;
+  private Program concatenation;
+  private String literalConcatenation;
+  private final Output out = new Output(OutputStream.nullOutputStream());
+  private final Diagnostics diagnostics = new Diagnostics();
+  private final Engine engine = new Engine();
+
+  @Setup
+  public void setUp() {
+    source = LoxSources.generate(size);
+    tokens = new Scanner(source, diagnostics).scanPacked();
+    statements = new Parser(tokens, diagnostics).parse();
+    expressionTokens = new Scanner(LoxSources.expressions(size), diagnostics).scanPacked();
+    new Parser(expressionTokens, diagnostics).parse();
+    Resolver resolver = new Resolver();
+    resolver.resolve(statements);
+    globals = resolver.names();
+    chunk = new Compiler(diagnostics).compile(statements);
+    concatenation = engine.compile(LoxSources.concatenation(size), diagnostics);
+    literalConcatenation = LoxSources.literalConcatenation(size);
+    if (diagnostics.hadError()) {
+      throw new IllegalStateException("Generated source for " + size + " does not compile.");
+    }
+  }
+
+  @Benchmark
+  public PackedTokens scan() {
+    return new Scanner(source, diagnostics).scanPacked();
+  }
+
+  @Benchmark
+  public List<Token> scanTokens() {
+    return new Scanner(source, diagnostics).scanTokens();
+  }
+
+  @Benchmark
+  public List<Stmt> parse() {
+    return new Parser(tokens, diagnostics).parse();
+  }
+
+  /** Parsing input that is almost all operators, as throughput rather than time per parse. */
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  public List<Stmt> parseExpressions() {
+    return new Parser(expressionTokens, diagnostics).parse();
+  }
+
+  @Benchmark
+  public void interpret() {
+    new Interpreter(new Environment(globals.length), out, diagnostics).interpret(statements);
+  }
+
+  @Benchmark
+  public void vm() {
+    new VM(new Environment(globals.length), out, diagnostics).interpret(chunk);
+  }
+
+  /** Appending to one string, which is quadratic unless concatenation avoids copying. */
+  @Benchmark
+  public void concatenate() {
+    new Context(out, diagnostics).run(concatenation);
+  }
+
+  /**
+   * Adding up a chain of string literals, compiled each time since the optimizer folds constants:
+   * quadratic unless both folding and concatenation avoid copying every prefix.
+   */
+  @Benchmark
+  public void concatenateLiterals() {
+    new Context(out, diagnostics).run(engine.compile(literalConcatenation, diagnostics));
+  }
+
+  @Benchmark
+  public void endToEnd() {
+    new Context(out, diagnostics).run(engine.compile(source, diagnostics));
+  }
+}
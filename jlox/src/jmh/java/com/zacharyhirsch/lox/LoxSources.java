@@ -0,0 +1,187 @@
+package com.zacharyhirsch.lox;
+
+import java.util.Random;
+
+/** Generates deterministic, error-free Lox programs of a given size for benchmarking. */
+final class LoxSources {
+
+  private static final int MAX_DEPTH = 4;
+
+  private final Random random;
+  private final StringBuilder out = new StringBuilder();
+  private int variables = 0;
+
+  private LoxSources(long seed) {
+    this.random = new Random(seed);
+  }
+
+  /** Returns a program for one of the benchmark sizes: small, medium or large. */
+  static String generate(String size) {
+    return generate(statements(size));
+  }
+
+  /** Returns a program that builds one long string by appending to it, one piece per statement. */
+  static String concatenation(String size) {
+    int statements = statements(size);
+    StringBuilder out = new StringBuilder("var s = \"\";\n");
+    for (int i = 0; i < statements; i++) {
+      out.append("s = s + \"piece ").append(i).append(", \";\n");
+    }
+    return out.append("print s;\n").toString();
+  }
+
+  /**
+   * Returns a program that prints one long chain of string literals added together, one piece per
+   * statement of the other programs, which the optimizer sees as one constant expression.
+   */
+  static String literalConcatenation(String size) {
+    int pieces = statements(size);
+    StringBuilder out = new StringBuilder("print \"\"");
+    for (int i = 0; i < pieces; i++) {
+      out.append(" + \"piece ").append(i).append(", \"");
+    }
+    return out.append(";\n").toString();
+  }
+
+  /**
+   * Returns a program of long expressions over a few variables, each using every level of
+   * precedence, so that parsing it is almost all expression parsing. Each statement is about as
+   * long as ten ordinary ones, so there are a tenth as many.
+   */
+  static String expressions(String size) {
+    int statements = statements(size) / 10;
+    LoxSources sources = new LoxSources(statements);
+    sources.out.append("var v0 = 1;\nvar v1 = 2;\nvar v2 = 3;\n");
+    sources.variables = 3;
+    for (int i = 0; i < statements; i++) {
+      sources.out.append("v").append(i % 3).append(" = ");
+      for (int term = 0; term < 8; term++) {
+        if (term > 0) {
+          sources.out.append(term % 4 == 0 ? ", " : " + ");
+        }
+        sources.comparison(2);
+        sources.out.append(" ? -");
+        sources.number(2);
+        sources.out.append(" : !(");
+        sources.number(2);
+        sources.out.append(" == ");
+        sources.variable();
+        sources.out.append(')');
+      }
+      sources.out.append(";\n");
+    }
+    return sources.out.toString();
+  }
+
+  private static int statements(String size) {
+    switch (size) {
+      case "small":
+        return 20;
+      case "medium":
+        return 2_000;
+      case "large":
+        return 200_000;
+      default:
+        throw new IllegalArgumentException("Unknown size " + size + ".");
+    }
+  }
+
+  static String generate(int statements) {
+    LoxSources sources = new LoxSources(statements);
+    for (int i = 0; i < statements; i++) {
+      sources.statement();
+    }
+    return sources.out.toString();
+  }
+
+  private void statement() {
+    int kind = variables == 0 ? 0 : random.nextInt(100);
+    if (kind < 40) {
+      out.append("var v").append(variables).append(" = ");
+      number(MAX_DEPTH);
+      out.append(";\n");
+      variables++;
+    } else if (kind < 70) {
+      variable();
+      out.append(" = ");
+      number(MAX_DEPTH);
+      out.append(";\n");
+    } else if (kind < 85) {
+      out.append("print \"v = \" + (");
+      number(MAX_DEPTH);
+      out.append(");\n");
+    } else {
+      comparison(MAX_DEPTH);
+      out.append(" ? ");
+      number(MAX_DEPTH);
+      out.append(" : (");
+      number(MAX_DEPTH);
+      out.append(", ");
+      number(MAX_DEPTH);
+      out.append(");\n");
+    }
+  }
+
+  private void number(int depth) {
+    if (depth == 0 || random.nextInt(10) < 3) {
+      if (variables > 0 && random.nextBoolean()) {
+        variable();
+      } else {
+        out.append(random.nextInt(1000));
+        if (random.nextInt(4) == 0) {
+          out.append('.').append(random.nextInt(100));
+        }
+      }
+      return;
+    }
+    switch (random.nextInt(7)) {
+      case 0:
+        number(depth - 1);
+        out.append(" + ");
+        number(depth - 1);
+        break;
+      case 1:
+        number(depth - 1);
+        out.append(" - ");
+        number(depth - 1);
+        break;
+      case 2:
+        number(depth - 1);
+        out.append(" * ");
+        number(depth - 1);
+        break;
+      case 3:
+        number(depth - 1);
+        out.append(" / ").append(random.nextInt(9) + 1);
+        break;
+      case 4:
+        out.append('(');
+        number(depth - 1);
+        out.append(')');
+        break;
+      case 5:
+        out.append('-');
+        number(depth - 1);
+        break;
+      default:
+        out.append('(');
+        comparison(depth - 1);
+        out.append(" ? ");
+        number(depth - 1);
+        out.append(" : ");
+        number(depth - 1);
+        out.append(')');
+        break;
+    }
+  }
+
+  private void comparison(int depth) {
+    number(depth);
+    out.append(new String[] {" < ", " <= ", " > ", " >= ", " == ", " != "}[random.nextInt(6)]);
+    number(depth);
+  }
+
+  private void variable() {
+    out.append('v').append(random.nextInt(variables));
+  }
+}
@@ -8,6 +8,11 @@ final class AstPrinter implements Expr.Visitor<String> {
     return expr.accept(this);
   }
 
+  @Override
+  public String visitAssignExpr(Expr.Assign expr) {
+    return parenthesize("= " + expr.name.lexeme, expr.value);
+  }
+
   @Override
   public String visitBinaryExpr(Expr.Binary expr) {
     return parenthesize(expr.operator.lexeme, expr.left, expr.right);
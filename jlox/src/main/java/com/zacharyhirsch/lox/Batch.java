@@ -0,0 +1,179 @@
+package com.zacharyhirsch.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Compiles and runs many scripts at once on a fork-join pool.
+ *
+ * <p>Every script runs in its own {@link Context} with its output captured, so scripts cannot see
+ * each other's globals or interleave their output. Captured output is either written to stdout and
+ * stderr in the order the scripts were given, as soon as each script and all those before it have
+ * finished, or to one file per script under an output directory.
+ *
+ * <p>Each script gets the status {@code jlox script} would exit with: 65 for compile errors, 70 for
+ * runtime errors, and 66 if it could not be read. The batch exits with the worst of them, in that
+ * order of precedence, after printing a summary to stderr.
+ */
+final class Batch {
+
+  private static final int OK = 0;
+  private static final int COMPILE_ERROR = 65;
+  private static final int UNREADABLE = 66;
+  private static final int RUNTIME_ERROR = 70;
+
+  private final Engine engine;
+  private final int parallelism;
+  private final Path outputDir;
+  private final Supplier<Diagnostics> diagnostics;
+
+  /**
+   * Runs scripts on {@code parallelism} threads, writing output under {@code outputDir} if set, and
+   * collecting each script's errors in a new object from {@code diagnostics}.
+   */
+  Batch(Engine engine, int parallelism, Path outputDir, Supplier<Diagnostics> diagnostics) {
+    this.engine = engine;
+    this.parallelism = parallelism;
+    this.outputDir = outputDir;
+    this.diagnostics = diagnostics;
+  }
+
+  /** Expands directories among {@code names} into the {@code .lox} files under them, sorted. */
+  static List<Path> expand(List<Path> names) throws IOException {
+    List<Path> paths = new ArrayList<>();
+    for (Path name : names) {
+      if (!Files.isDirectory(name)) {
+        paths.add(name);
+        continue;
+      }
+      try (Stream<Path> files = Files.walk(name)) {
+        paths.addAll(
+            files
+                .filter(path -> path.toString().endsWith(".lox") && Files.isRegularFile(path))
+                .sorted()
+                .collect(Collectors.toList()));
+      }
+    }
+    return paths;
+  }
+
+  /** Runs every script in {@code paths} and returns the exit status of the batch. */
+  int run(List<Path> paths) throws IOException {
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    try {
+      List<ForkJoinTask<Result>> tasks = new ArrayList<>(paths.size());
+      for (Path path : paths) {
+        tasks.add(pool.submit(() -> runOne(path)));
+      }
+      int[] counts = new int[RUNTIME_ERROR + 1];
+      List<Result> failures = new ArrayList<>();
+      for (ForkJoinTask<Result> task : tasks) {
+        Result result = task.join();
+        write(result);
+        counts[result.status]++;
+        if (result.status != OK) {
+          failures.add(result);
+        }
+      }
+      for (Result failure : failures) {
+        System.err.println("[" + failure.status + "] " + failure.path);
+      }
+      System.err.println(
+          paths.size()
+              + " scripts: "
+              + counts[OK]
+              + " ok, "
+              + counts[COMPILE_ERROR]
+              + " compile errors (65), "
+              + counts[RUNTIME_ERROR]
+              + " runtime errors (70), "
+              + counts[UNREADABLE]
+              + " unreadable (66)");
+      for (int status : new int[] {UNREADABLE, COMPILE_ERROR, RUNTIME_ERROR}) {
+        if (counts[status] > 0) {
+          return status;
+        }
+      }
+      return OK;
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private Result runOne(Path path) {
+    Diagnostics diagnostics = this.diagnostics.get();
+    String source;
+    try {
+      source = Files.readString(path, Charset.defaultCharset());
+    } catch (IOException | RuntimeException e) {
+      diagnostics.note("Could not read " + path + ": " + e);
+      return new Result(path, new byte[0], diagnostics.messages(), UNREADABLE);
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Program program = engine.compile(source, diagnostics);
+    if (program != null) {
+      Context context = new Context(out, diagnostics);
+      context.run(program);
+      context.flush();
+    }
+    int status = OK;
+    if (diagnostics.hadError()) {
+      status = COMPILE_ERROR;
+    } else if (diagnostics.hadRuntimeError()) {
+      status = RUNTIME_ERROR;
+    }
+    return new Result(path, out.toByteArray(), diagnostics.messages(), status);
+  }
+
+  private void write(Result result) throws IOException {
+    if (outputDir == null) {
+      System.out.write(result.out);
+      System.out.flush();
+      for (String message : result.messages) {
+        System.err.println(message);
+      }
+      return;
+    }
+    Path base = outputDir.resolve(relativeName(result.path));
+    Files.createDirectories(base.toAbsolutePath().getParent());
+    Files.write(Path.of(base + ".out"), result.out);
+    if (!result.messages.isEmpty()) {
+      Files.write(Path.of(base + ".err"), result.messages, Charset.defaultCharset());
+    }
+  }
+
+  /** Returns {@code path} without its root or leading {@code ..}s, so it stays in the output. */
+  private static String relativeName(Path path) {
+    path = path.normalize();
+    int start = 0;
+    while (start < path.getNameCount() - 1 && path.getName(start).toString().equals("..")) {
+      start++;
+    }
+    return path.subpath(start, path.getNameCount()).toString();
+  }
+
+  private static final class Result {
+
+    final Path path;
+    final byte[] out;
+    final List<String> messages;
+    final int status;
+
+    Result(Path path, byte[] out, List<String> messages, int status) {
+      this.path = path;
+      this.out = out;
+      this.messages = messages;
+      this.status = status;
+    }
+  }
+}
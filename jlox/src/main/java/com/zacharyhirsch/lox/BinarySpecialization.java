@@ -0,0 +1,228 @@
+package com.zacharyhirsch.lox;
+
+/**
+ * The specialized variant an {@link Expr.Binary} site has rewritten itself into, which evaluates
+ * the site.
+ *
+ * <p>A site starts {@link #UNINITIALIZED}, which picks a variant from the operand types it sees the
+ * first time it runs and stores it in the node, and from then on the node calls that variant
+ * directly. A variant only evaluates the operands, checks the one guard it was specialized on and
+ * applies its own operation; there is no dispatch on the operator. When the guard fails, the site
+ * rewrites itself to {@link #GENERIC} for good and finishes the evaluation there. Racing updates
+ * from different threads are harmless, since whichever variant runs checks its own guard.
+ */
+enum BinarySpecialization {
+  UNINITIALIZED {
+    @Override
+    double evaluate(Interpreter interpreter, Expr.Binary expr) {
+      if (expr.operator.type == TokenType.COMMA) {
+        expr.specialization = GENERIC;
+        return GENERIC.evaluate(interpreter, expr);
+      }
+      double left = interpreter.evaluateNumber(expr.left);
+      Object leftBoxed = interpreter.boxed;
+      double right = interpreter.evaluateNumber(expr.right);
+      Object rightBoxed = interpreter.boxed;
+      expr.specialization = specialize(expr.operator.type, leftBoxed, rightBoxed);
+      return interpreter.evaluateGeneric(expr, left, leftBoxed, right, rightBoxed);
+    }
+  },
+
+  NUMBER_ADD {
+    @Override
+    double evaluate(Interpreter interpreter, Expr.Binary expr) {
+      double left = interpreter.evaluateNumber(expr.left);
+      Object leftBoxed = interpreter.boxed;
+      double right = interpreter.evaluateNumber(expr.right);
+      if (leftBoxed == Interpreter.NUMBER && interpreter.boxed == Interpreter.NUMBER) {
+        return left + right;
+      }
+      return interpreter.despecialize(expr, left, leftBoxed, right);
+    }
+  },
+  NUMBER_SUBTRACT {
+    @Override
+    double evaluate(Interpreter interpreter, Expr.Binary expr) {
+      double left = interpreter.evaluateNumber(expr.left);
+      Object leftBoxed = interpreter.boxed;
+      double right = interpreter.evaluateNumber(expr.right);
+      if (leftBoxed == Interpreter.NUMBER && interpreter.boxed == Interpreter.NUMBER) {
+        return left - right;
+      }
+      return interpreter.despecialize(expr, left, leftBoxed, right);
+    }
+  },
+  NUMBER_MULTIPLY {
+    @Override
+    double evaluate(Interpreter interpreter, Expr.Binary expr) {
+      double left = interpreter.evaluateNumber(expr.left);
+      Object leftBoxed = interpreter.boxed;
+      double right = interpreter.evaluateNumber(expr.right);
+      if (leftBoxed == Interpreter.NUMBER && interpreter.boxed == Interpreter.NUMBER) {
+        return left * right;
+      }
+      return interpreter.despecialize(expr, left, leftBoxed, right);
+    }
+  },
+  /** Division by zero is the one miss that still fits the specialization, as it is an error. */
+  NUMBER_DIVIDE {
+    @Override
+    double evaluate(Interpreter interpreter, Expr.Binary expr) {
+      double left = interpreter.evaluateNumber(expr.left);
+      Object leftBoxed = interpreter.boxed;
+      double right = interpreter.evaluateNumber(expr.right);
+      if (leftBoxed == Interpreter.NUMBER && interpreter.boxed == Interpreter.NUMBER) {
+        if (right != 0) {
+          return left / right;
+        }
+        return interpreter.evaluateGeneric(expr, left, leftBoxed, right, Interpreter.NUMBER);
+      }
+      return interpreter.despecialize(expr, left, leftBoxed, right);
+    }
+  },
+  NUMBER_GREATER {
+    @Override
+    double evaluate(Interpreter interpreter, Expr.Binary expr) {
+      double left = interpreter.evaluateNumber(expr.left);
+      Object leftBoxed = interpreter.boxed;
+      double right = interpreter.evaluateNumber(expr.right);
+      if (leftBoxed == Interpreter.NUMBER && interpreter.boxed == Interpreter.NUMBER) {
+        interpreter.boxed = left > right;
+        return 0;
+      }
+      return interpreter.despecialize(expr, left, leftBoxed, right);
+    }
+  },
+  NUMBER_GREATER_EQUAL {
+    @Override
+    double evaluate(Interpreter interpreter, Expr.Binary expr) {
+      double left = interpreter.evaluateNumber(expr.left);
+      Object leftBoxed = interpreter.boxed;
+      double right = interpreter.evaluateNumber(expr.right);
+      if (leftBoxed == Interpreter.NUMBER && interpreter.boxed == Interpreter.NUMBER) {
+        interpreter.boxed = left >= right;
+        return 0;
+      }
+      return interpreter.despecialize(expr, left, leftBoxed, right);
+    }
+  },
+  NUMBER_LESS {
+    @Override
+    double evaluate(Interpreter interpreter, Expr.Binary expr) {
+      double left = interpreter.evaluateNumber(expr.left);
+      Object leftBoxed = interpreter.boxed;
+      double right = interpreter.evaluateNumber(expr.right);
+      if (leftBoxed == Interpreter.NUMBER && interpreter.boxed == Interpreter.NUMBER) {
+        interpreter.boxed = left < right;
+        return 0;
+      }
+      return interpreter.despecialize(expr, left, leftBoxed, right);
+    }
+  },
+  NUMBER_LESS_EQUAL {
+    @Override
+    double evaluate(Interpreter interpreter, Expr.Binary expr) {
+      double left = interpreter.evaluateNumber(expr.left);
+      Object leftBoxed = interpreter.boxed;
+      double right = interpreter.evaluateNumber(expr.right);
+      if (leftBoxed == Interpreter.NUMBER && interpreter.boxed == Interpreter.NUMBER) {
+        interpreter.boxed = left <= right;
+        return 0;
+      }
+      return interpreter.despecialize(expr, left, leftBoxed, right);
+    }
+  },
+  NUMBER_EQUAL {
+    @Override
+    double evaluate(Interpreter interpreter, Expr.Binary expr) {
+      double left = interpreter.evaluateNumber(expr.left);
+      Object leftBoxed = interpreter.boxed;
+      double right = interpreter.evaluateNumber(expr.right);
+      if (leftBoxed == Interpreter.NUMBER && interpreter.boxed == Interpreter.NUMBER) {
+        interpreter.boxed = Double.doubleToLongBits(left) == Double.doubleToLongBits(right);
+        return 0;
+      }
+      return interpreter.despecialize(expr, left, leftBoxed, right);
+    }
+  },
+  NUMBER_NOT_EQUAL {
+    @Override
+    double evaluate(Interpreter interpreter, Expr.Binary expr) {
+      double left = interpreter.evaluateNumber(expr.left);
+      Object leftBoxed = interpreter.boxed;
+      double right = interpreter.evaluateNumber(expr.right);
+      if (leftBoxed == Interpreter.NUMBER && interpreter.boxed == Interpreter.NUMBER) {
+        interpreter.boxed = Double.doubleToLongBits(left) != Double.doubleToLongBits(right);
+        return 0;
+      }
+      return interpreter.despecialize(expr, left, leftBoxed, right);
+    }
+  },
+
+  STRING_CONCAT {
+    @Override
+    double evaluate(Interpreter interpreter, Expr.Binary expr) {
+      double left = interpreter.evaluateNumber(expr.left);
+      Object leftBoxed = interpreter.boxed;
+      double right = interpreter.evaluateNumber(expr.right);
+      if (Rope.isString(leftBoxed) && Rope.isString(interpreter.boxed)) {
+        interpreter.boxed = Rope.concat(leftBoxed, interpreter.boxed);
+        return 0;
+      }
+      return interpreter.despecialize(expr, left, leftBoxed, right);
+    }
+  },
+
+  /** Any operator on any operands, dispatching on the operator every time. */
+  GENERIC {
+    @Override
+    double evaluate(Interpreter interpreter, Expr.Binary expr) {
+      if (expr.operator.type == TokenType.COMMA) {
+        interpreter.evaluate(expr.left);
+        return interpreter.evaluateNumber(expr.right);
+      }
+      double left = interpreter.evaluateNumber(expr.left);
+      Object leftBoxed = interpreter.boxed;
+      double right = interpreter.evaluateNumber(expr.right);
+      return interpreter.evaluateGeneric(expr, left, leftBoxed, right, interpreter.boxed);
+    }
+  };
+
+  /**
+   * Evaluates {@code expr}, whose site is specialized as this variant, as {@link
+   * Interpreter#evaluateNumber} does: a number is returned, and anything else left in {@code
+   * interpreter.boxed}.
+   */
+  abstract double evaluate(Interpreter interpreter, Expr.Binary expr);
+
+  private static BinarySpecialization specialize(TokenType operator, Object left, Object right) {
+    if (left == Interpreter.NUMBER && right == Interpreter.NUMBER) {
+      switch (operator) {
+        case PLUS:
+          return NUMBER_ADD;
+        case MINUS:
+          return NUMBER_SUBTRACT;
+        case STAR:
+          return NUMBER_MULTIPLY;
+        case SLASH:
+          return NUMBER_DIVIDE;
+        case GREATER:
+          return NUMBER_GREATER;
+        case GREATER_EQUAL:
+          return NUMBER_GREATER_EQUAL;
+        case LESS:
+          return NUMBER_LESS;
+        case LESS_EQUAL:
+          return NUMBER_LESS_EQUAL;
+        case EQUAL_EQUAL:
+          return NUMBER_EQUAL;
+        case BANG_EQUAL:
+          return NUMBER_NOT_EQUAL;
+      }
+    }
+    if (operator == TokenType.PLUS && Rope.isString(left) && Rope.isString(right)) {
+      return STRING_CONCAT;
+    }
+    return GENERIC;
+  }
+}
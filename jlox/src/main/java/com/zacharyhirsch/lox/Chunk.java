@@ -0,0 +1,63 @@
+package com.zacharyhirsch.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/** A compiled sequence of {@link OpCode} instructions and the constants they refer to. */
+final class Chunk {
+
+  byte[] code = new byte[64];
+  Token[] tokens = new Token[64];
+  int count = 0;
+
+  Object[] constants = new Object[16];
+  int constantCount = 0;
+
+  /** The deepest the value stack gets while running this chunk. */
+  int maxStack = 0;
+
+  /** The offset just past each top-level statement's code, in order. */
+  int[] statementEnds = new int[16];
+  int statementCount = 0;
+
+  private final Map<Object, Integer> constantIndexes = new HashMap<>();
+
+  void write(int b, Token token) {
+    if (count == code.length) {
+      code = Arrays.copyOf(code, count * 2);
+      tokens = Arrays.copyOf(tokens, count * 2);
+    }
+    code[count] = (byte) b;
+    tokens[count] = token;
+    count++;
+  }
+
+  /** Marks the end of a top-level statement at the code written so far. */
+  void endStatement() {
+    if (statementCount == statementEnds.length) {
+      statementEnds = Arrays.copyOf(statementEnds, statementCount * 2);
+    }
+    statementEnds[statementCount++] = count;
+  }
+
+  /** Returns how many top-level statements end at or before {@code offset}. */
+  int statementsBefore(int offset) {
+    int index = Arrays.binarySearch(statementEnds, 0, statementCount, offset);
+    return index >= 0 ? index + 1 : -index - 1;
+  }
+
+  /** Returns the index of {@code value} in the constant table, adding it if necessary. */
+  int addConstant(Object value) {
+    Integer index = constantIndexes.get(value);
+    if (index != null) {
+      return index;
+    }
+    if (constantCount == constants.length) {
+      constants = Arrays.copyOf(constants, constantCount * 2);
+    }
+    constants[constantCount] = value;
+    constantIndexes.put(value, constantCount);
+    return constantCount++;
+  }
+}
@@ -0,0 +1,252 @@
+package com.zacharyhirsch.lox;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Lowers a parsed program into a {@link Chunk} for the {@link VM}.
+ *
+ * <p>Expressions are compiled with an {@link ExprStack} rather than by recursion, so any expression
+ * the parser accepts can be compiled. The code between a node's operands is emitted as the walk
+ * passes it, and the expression visit methods emit the code that follows its last operand.
+ */
+final class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+  private static final class CompileError extends RuntimeException {}
+
+  private static final int MAX_OPERAND = 0xffffff;
+
+  private final Chunk chunk = new Chunk();
+  private final Diagnostics diagnostics;
+  private int depth = 0;
+  private int line = 0;
+  private final ExprStack stack = new ExprStack();
+
+  /** The jumps of the ternaries being compiled that are still to be patched, innermost last. */
+  private int[] jumps = new int[16];
+  private int pendingJumps = 0;
+
+  Compiler(Diagnostics diagnostics) {
+    this.diagnostics = diagnostics;
+  }
+
+  /** Returns the compiled program, or null if an error was reported. */
+  Chunk compile(List<Stmt> statements) {
+    try {
+      for (Stmt statement : statements) {
+        statement.accept(this);
+        chunk.endStatement();
+      }
+      emit(OpCode.RETURN, null, 0);
+      return chunk;
+    } catch (CompileError error) {
+      return null;
+    }
+  }
+
+  @Override
+  public Void visitAssignExpr(Expr.Assign expr) {
+    emit(OpCode.SET_GLOBAL, expr.name, 0);
+    emitSlot(expr.slot);
+    return null;
+  }
+
+  @Override
+  public Void visitBinaryExpr(Expr.Binary expr) {
+    if (expr.operator.type == TokenType.COMMA) {
+      // The value of its left operand was popped before its right operand was compiled.
+      return null;
+    }
+    switch (expr.operator.type) {
+      case MINUS:
+        emit(OpCode.SUBTRACT, expr.operator, -1);
+        break;
+      case SLASH:
+        emit(OpCode.DIVIDE, expr.operator, -1);
+        break;
+      case STAR:
+        emit(OpCode.MULTIPLY, expr.operator, -1);
+        break;
+      case PLUS:
+        emit(OpCode.ADD, expr.operator, -1);
+        break;
+      case GREATER:
+        emit(OpCode.GREATER, expr.operator, -1);
+        break;
+      case GREATER_EQUAL:
+        emit(OpCode.GREATER_EQUAL, expr.operator, -1);
+        break;
+      case LESS:
+        emit(OpCode.LESS, expr.operator, -1);
+        break;
+      case LESS_EQUAL:
+        emit(OpCode.LESS_EQUAL, expr.operator, -1);
+        break;
+      case BANG_EQUAL:
+        emit(OpCode.NOT_EQUAL, expr.operator, -1);
+        break;
+      case EQUAL_EQUAL:
+        emit(OpCode.EQUAL, expr.operator, -1);
+        break;
+      default:
+        throw error("Unknown binary operator.");
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitGroupingExpr(Expr.Grouping expr) {
+    return null;
+  }
+
+  @Override
+  public Void visitLiteralExpr(Expr.Literal expr) {
+    if (expr.value == null) {
+      emit(OpCode.NIL, null, 1);
+    } else if (expr.value instanceof Boolean) {
+      emit((boolean) expr.value ? OpCode.TRUE : OpCode.FALSE, null, 1);
+    } else {
+      int constant = chunk.addConstant(expr.value);
+      if (constant > MAX_OPERAND) {
+        throw error("Too many constants in one chunk.");
+      }
+      emit(OpCode.CONSTANT, null, 1);
+      emitOperand(constant);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitUnaryExpr(Expr.Unary expr) {
+    switch (expr.operator.type) {
+      case BANG:
+        emit(OpCode.NOT, expr.operator, 0);
+        break;
+      case MINUS:
+        emit(OpCode.NEGATE, expr.operator, 0);
+        break;
+      default:
+        throw error("Unknown unary operator.");
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitTernaryExpr(Expr.Ternary expr) {
+    patchJump(jumps[--pendingJumps]);
+    return null;
+  }
+
+  @Override
+  public Void visitVariableExpr(Expr.Variable expr) {
+    emit(OpCode.GET_GLOBAL, expr.name, 1);
+    emitSlot(expr.slot);
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    compile(stmt.expression);
+    emit(OpCode.POP, null, -1);
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    compile(stmt.expression);
+    emit(OpCode.PRINT, null, -1);
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    if (stmt.initializer != null) {
+      compile(stmt.initializer);
+    } else {
+      emit(OpCode.NIL, null, 1);
+    }
+    emit(OpCode.DEFINE_GLOBAL, stmt.name, -1);
+    emitSlot(stmt.slot);
+    return null;
+  }
+
+  private void compile(Expr expr) {
+    stack.push(expr);
+    while (!stack.isEmpty()) {
+      Expr top = stack.peek();
+      int visit = stack.next();
+      if (visit == 1 && top instanceof Expr.Binary) {
+        Expr.Binary binary = (Expr.Binary) top;
+        if (binary.operator.type == TokenType.COMMA) {
+          emit(OpCode.POP, binary.operator, -1);
+        }
+      } else if (visit == 1 && top instanceof Expr.Ternary) {
+        pushJump(emitJump(OpCode.JUMP_IF_FALSE, -1));
+      } else if (visit == 2 && top instanceof Expr.Ternary) {
+        int elseJump = jumps[--pendingJumps];
+        pushJump(emitJump(OpCode.JUMP, 0));
+        patchJump(elseJump);
+        // Only one branch runs, so the first branch's value is not on the stack for the second.
+        depth--;
+      }
+      Expr operand = ExprStack.operand(top, visit);
+      if (operand != null) {
+        stack.push(operand);
+      } else {
+        stack.pop().accept(this);
+      }
+    }
+  }
+
+  private void pushJump(int offset) {
+    if (pendingJumps == jumps.length) {
+      jumps = Arrays.copyOf(jumps, pendingJumps * 2);
+    }
+    jumps[pendingJumps++] = offset;
+  }
+
+  private void emit(byte op, Token token, int stackEffect) {
+    chunk.write(op, token);
+    if (token != null) {
+      line = token.line;
+    }
+    depth += stackEffect;
+    if (depth > chunk.maxStack) {
+      chunk.maxStack = depth;
+    }
+  }
+
+  private void emitOperand(int value) {
+    chunk.write((value >> 16) & 0xff, null);
+    chunk.write((value >> 8) & 0xff, null);
+    chunk.write(value & 0xff, null);
+  }
+
+  private void emitSlot(int slot) {
+    if (slot > MAX_OPERAND) {
+      throw error("Too many global variables.");
+    }
+    emitOperand(slot);
+  }
+
+  private int emitJump(byte op, int stackEffect) {
+    emit(op, null, stackEffect);
+    emitOperand(MAX_OPERAND);
+    return chunk.count - 3;
+  }
+
+  private void patchJump(int offset) {
+    int jump = chunk.count - offset - 3;
+    if (jump > MAX_OPERAND) {
+      throw error("Too much code to jump over.");
+    }
+    chunk.code[offset] = (byte) ((jump >> 16) & 0xff);
+    chunk.code[offset + 1] = (byte) ((jump >> 8) & 0xff);
+    chunk.code[offset + 2] = (byte) (jump & 0xff);
+  }
+
+  private CompileError error(String message) {
+    diagnostics.error(line, message);
+    return new CompileError();
+  }
+}
@@ -0,0 +1,89 @@
+package com.zacharyhirsch.lox;
+
+import java.io.OutputStream;
+
+/**
+ * The state of one running script: its global variables, where it prints to and where its runtime
+ * errors go.
+ *
+ * <p>Contexts share nothing with each other, so any number of them can run at once. A single
+ * context must only be used by one thread at a time.
+ */
+public final class Context {
+
+  private final Symbols names = new Symbols();
+  private final Globals globals = new Globals();
+  private final Output out;
+  private final Diagnostics diagnostics;
+  private Profiler profiler = null;
+
+  /** Creates a context that prints to {@code out}; call {@link #flush} to be sure it is written. */
+  public Context(OutputStream out, Diagnostics diagnostics) {
+    this(new Output(out), diagnostics);
+  }
+
+  Context(Output out, Diagnostics diagnostics) {
+    this.out = out;
+    this.diagnostics = diagnostics;
+  }
+
+  public Diagnostics diagnostics() {
+    return diagnostics;
+  }
+
+  /** Times the programs this context interprets with {@code profiler}, or stops if it is null. */
+  void profile(Profiler profiler) {
+    this.profiler = profiler;
+  }
+
+  /**
+   * Runs {@code program} against this context's globals, so it sees the variables defined by the
+   * programs run here before it.
+   *
+   * <p>The program's globals are loaded into an {@link Environment} laid out by its own slots and
+   * written back afterwards, which costs interning each name the program uses into this context's
+   * own {@link Symbols}, and one lookup by symbol to load it and another to store it.
+   */
+  public void run(Program program) {
+    runPart(program);
+    Metrics.INSTANCE.recordScript();
+  }
+
+  /**
+   * Runs {@code program} as {@link #run} does, but as one part of a script that is run a piece at a
+   * time, which the caller counts as a script itself.
+   */
+  void runPart(Program program) {
+    int[] symbols = new int[program.globals.length];
+    for (int slot = 0; slot < symbols.length; slot++) {
+      symbols[slot] = names.intern(program.globals[slot]);
+    }
+    Environment environment = new Environment(symbols.length);
+    for (int slot = 0; slot < symbols.length; slot++) {
+      Object value = globals.get(symbols[slot]);
+      if (value != Globals.ABSENT) {
+        environment.define(slot, value);
+      }
+    }
+    long start = System.nanoTime();
+    int executed;
+    if (program.chunk != null) {
+      executed = new VM(environment, out, diagnostics).interpret(program.chunk);
+    } else if (program.jit != null) {
+      executed = program.jit.run(environment, out, diagnostics);
+    } else {
+      executed =
+          new Interpreter(environment, out, diagnostics, profiler).interpret(program.statements);
+    }
+    Metrics.INSTANCE.recordExecute(System.nanoTime() - start, executed, symbols.length);
+    for (int slot = 0; slot < symbols.length; slot++) {
+      if (environment.isDefined(slot)) {
+        globals.put(symbols[slot], environment.get(slot));
+      }
+    }
+  }
+
+  public void flush() {
+    out.flush();
+  }
+}
@@ -0,0 +1,111 @@
+package com.zacharyhirsch.lox;
+
+/** One error or note reported while compiling or running a script. */
+public final class Diagnostic {
+
+  public enum Severity {
+    /** A syntax or compile error, which stops the script from running. */
+    ERROR,
+    /** An error that stopped a running script. */
+    RUNTIME_ERROR,
+    /** Information about the other diagnostics, such as that later errors were left out. */
+    NOTE,
+  }
+
+  private final Severity severity;
+  private final int line;
+  private final String token;
+  private final String message;
+
+  Diagnostic(Severity severity, int line, String token, String message) {
+    this.severity = severity;
+    this.line = line;
+    this.token = token;
+    this.message = message;
+  }
+
+  public Severity severity() {
+    return severity;
+  }
+
+  /** The line the diagnostic is about, or zero if it is not about a line. */
+  public int line() {
+    return line;
+  }
+
+  /**
+   * The lexeme of the token the diagnostic is about, which is empty for the end of the input, or
+   * null if it is not about a token.
+   */
+  public String token() {
+    return token;
+  }
+
+  public String message() {
+    return message;
+  }
+
+  /** Formats the diagnostic as {@code jlox} prints it, which may take more than one line. */
+  @Override
+  public String toString() {
+    switch (severity) {
+      case ERROR:
+        {
+          String where = token == null ? "" : token.isEmpty() ? " at end" : " at '" + token + "'";
+          return "[line " + line + "] Error" + where + ": " + message;
+        }
+      case RUNTIME_ERROR:
+        return message + "\n[line " + line + "]";
+      default:
+        return message;
+    }
+  }
+
+  /** Formats the diagnostic as a JSON object on one line. */
+  public String toJson() {
+    StringBuilder json = new StringBuilder();
+    json.append("{\"severity\":\"").append(severity.name().toLowerCase()).append('"');
+    json.append(",\"line\":").append(line);
+    json.append(",\"token\":");
+    quote(json, token);
+    json.append(",\"message\":");
+    quote(json, message);
+    return json.append('}').toString();
+  }
+
+  private static void quote(StringBuilder json, String string) {
+    if (string == null) {
+      json.append("null");
+      return;
+    }
+    json.append('"');
+    for (int i = 0; i < string.length(); i++) {
+      char c = string.charAt(i);
+      switch (c) {
+        case '"':
+          json.append("\\\"");
+          break;
+        case '\\':
+          json.append("\\\\");
+          break;
+        case '\n':
+          json.append("\\n");
+          break;
+        case '\r':
+          json.append("\\r");
+          break;
+        case '\t':
+          json.append("\\t");
+          break;
+        default:
+          if (c < 0x20) {
+            json.append(String.format("\\u%04x", (int) c));
+          } else {
+            json.append(c);
+          }
+          break;
+      }
+    }
+    json.append('"');
+  }
+}
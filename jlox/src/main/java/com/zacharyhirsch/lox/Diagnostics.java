@@ -0,0 +1,163 @@
+package com.zacharyhirsch.lox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Collects the compile and runtime errors of one compilation or one {@link Context}, as {@link
+ * Diagnostic}s.
+ *
+ * <p>Only the first {@code maxErrors} compile errors are kept. The next one adds a note saying the
+ * rest were left out, after which {@link #tooManyErrors} is true and the scanner and parser stop
+ * looking for more, so a malformed input costs a bounded amount of reporting however large it is.
+ * Runtime errors stop a script, so there is at most one per run and they are always kept.
+ *
+ * <p>A diagnostics object is not thread-safe; give each thread that compiles or runs scripts its
+ * own.
+ */
+public final class Diagnostics {
+
+  /** How diagnostics are rendered as text. */
+  public enum Format {
+    /** As {@code jlox} has always printed them, by {@link Diagnostic#toString}. */
+    TEXT,
+    /** One JSON object per line, by {@link Diagnostic#toJson}. */
+    JSON,
+  }
+
+  private final Consumer<String> listener;
+  private final int maxErrors;
+  private final Format format;
+  private final List<Diagnostic> diagnostics = new ArrayList<>();
+  private int errors = 0;
+  private int drained = 0;
+  private boolean hadError = false;
+  private boolean hadRuntimeError = false;
+
+  /** Creates diagnostics that keep every error, to be read back with {@link #diagnostics}. */
+  public Diagnostics() {
+    this(null, Integer.MAX_VALUE, Format.TEXT);
+  }
+
+  /** Creates diagnostics that keep at most {@code maxErrors} compile errors. */
+  public Diagnostics(int maxErrors, Format format) {
+    this(null, maxErrors, format);
+  }
+
+  /** Creates diagnostics that also hand each formatted message to {@code listener}. */
+  public Diagnostics(Consumer<String> listener) {
+    this(listener, Integer.MAX_VALUE, Format.TEXT);
+  }
+
+  private Diagnostics(Consumer<String> listener, int maxErrors, Format format) {
+    if (maxErrors < 1) {
+      throw new IllegalArgumentException("maxErrors must be positive: " + maxErrors);
+    }
+    this.listener = listener;
+    this.maxErrors = maxErrors;
+    this.format = format;
+  }
+
+  public boolean hadError() {
+    return hadError;
+  }
+
+  public boolean hadRuntimeError() {
+    return hadRuntimeError;
+  }
+
+  /** Whether a compile error past the maximum has been reported, so compiling can stop. */
+  public boolean tooManyErrors() {
+    return errors > maxErrors;
+  }
+
+  /** Returns the diagnostics kept, in the order they were reported. */
+  public List<Diagnostic> diagnostics() {
+    return Collections.unmodifiableList(diagnostics);
+  }
+
+  /** Returns the diagnostics kept, each rendered in this object's format. */
+  public List<String> messages() {
+    List<String> messages = new ArrayList<>(diagnostics.size());
+    for (Diagnostic diagnostic : diagnostics) {
+      messages.add(render(diagnostic));
+    }
+    return messages;
+  }
+
+  /**
+   * Returns the diagnostics kept since the last call, rendered one after another with a line break
+   * after each, so that they can be written all at once.
+   */
+  public String drain() {
+    StringBuilder text = new StringBuilder();
+    for (; drained < diagnostics.size(); drained++) {
+      text.append(render(diagnostics.get(drained))).append('\n');
+    }
+    return text.toString();
+  }
+
+  /** Forgets earlier errors, such as between lines of the prompt. */
+  public void reset() {
+    hadError = false;
+    hadRuntimeError = false;
+    diagnostics.clear();
+    errors = 0;
+    drained = 0;
+  }
+
+  void error(int line, String message) {
+    error(line, null, message);
+  }
+
+  void error(Token token, String message) {
+    error(token.line, token.type == TokenType.EOF ? "" : token.lexeme, message);
+  }
+
+  void runtimeError(RuntimeError error) {
+    if (Events.enabled()) {
+      Events.RuntimeError event = new Events.RuntimeError();
+      if (event.shouldCommit()) {
+        event.line = error.token.line;
+        event.message = error.getMessage();
+        event.commit();
+      }
+    }
+    Metrics.INSTANCE.recordRuntimeError();
+    hadRuntimeError = true;
+    add(
+        new Diagnostic(
+            Diagnostic.Severity.RUNTIME_ERROR,
+            error.token.line,
+            error.token.lexeme,
+            error.getMessage()));
+  }
+
+  /** Reports something that is not an error in a script, such as that it could not be read. */
+  void note(String message) {
+    add(new Diagnostic(Diagnostic.Severity.NOTE, 0, null, message));
+  }
+
+  private void error(int line, String token, String message) {
+    hadError = true;
+    errors++;
+    if (errors <= maxErrors) {
+      add(new Diagnostic(Diagnostic.Severity.ERROR, line, token, message));
+    } else if (errors == maxErrors + 1) {
+      note("Too many errors; stopped after " + maxErrors + ".");
+    }
+  }
+
+  private void add(Diagnostic diagnostic) {
+    diagnostics.add(diagnostic);
+    if (listener != null) {
+      listener.accept(render(diagnostic));
+    }
+  }
+
+  private String render(Diagnostic diagnostic) {
+    return format == Format.JSON ? diagnostic.toJson() : diagnostic.toString();
+  }
+}
@@ -0,0 +1,84 @@
+package com.zacharyhirsch.lox;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Compiles scripts into {@link Program}s that can be run in {@link Context}s.
+ *
+ * <p>An engine only holds its configuration, so one engine can be shared by every thread in the
+ * JVM; each call to {@link #compile} works on its own scanner, parser and optimizer.
+ */
+public final class Engine {
+
+  /** What compiled programs run on. */
+  public enum Backend {
+    /** The tree-walking {@link Interpreter}. */
+    TREE,
+    /** The bytecode {@link VM}. */
+    VM,
+    /** JVM bytecode generated by the {@link JitCompiler}. */
+    JIT,
+  }
+
+  private final Backend backend;
+  private final Set<Optimizer.Pass> passes;
+  private final ProgramCache cache;
+
+  /** Creates an engine that runs fully optimized programs on the tree-walking interpreter. */
+  public Engine() {
+    this(Backend.TREE, EnumSet.allOf(Optimizer.Pass.class), null);
+  }
+
+  Engine(Backend backend, Set<Optimizer.Pass> passes, ProgramCache cache) {
+    this.backend = backend;
+    this.passes = EnumSet.noneOf(Optimizer.Pass.class);
+    this.passes.addAll(passes);
+    this.cache = cache;
+  }
+
+  /** Compiles {@code source}, returning null if it has errors, which go to {@code diagnostics}. */
+  public Program compile(String source, Diagnostics diagnostics) {
+    String variant = passes.toString();
+    List<Stmt> statements = cache == null ? null : cache.load(source, variant);
+    if (statements == null) {
+      Scanner scanner = new Scanner(source, diagnostics);
+      statements = new Parser(scanner.scanPacked(), diagnostics).parse();
+      if (diagnostics.hadError()) {
+        return null;
+      }
+      statements = new Optimizer(passes).optimize(statements);
+      if (cache != null) {
+        cache.store(source, variant, statements);
+      }
+    }
+    return link(statements, backend, diagnostics);
+  }
+
+  /**
+   * Like {@link #compile}, but for statements that have already been parsed: the pieces of a
+   * streamed script. Each piece runs once, which never repays defining a class for it, so on the
+   * JIT backend they are left to the interpreter, as the JIT does with code it cannot compile.
+   */
+  Program compile(List<Stmt> statements, Diagnostics diagnostics) {
+    Backend backend = this.backend == Backend.JIT ? Backend.TREE : this.backend;
+    return link(new Optimizer(passes).optimize(statements), backend, diagnostics);
+  }
+
+  private Program link(List<Stmt> statements, Backend backend, Diagnostics diagnostics) {
+    Resolver resolver = new Resolver();
+    resolver.resolve(statements);
+    Chunk chunk = null;
+    JitProgram jit = null;
+    if (backend == Backend.VM) {
+      chunk = new Compiler(diagnostics).compile(statements);
+      if (chunk == null) {
+        return null;
+      }
+    } else if (backend == Backend.JIT) {
+      jit = JitCompiler.compile(statements);
+    }
+    return new Program(statements, resolver.names(), chunk, jit);
+  }
+}
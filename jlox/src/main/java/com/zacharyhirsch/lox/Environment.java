@@ -1,20 +1,71 @@
 package com.zacharyhirsch.lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
+/**
+ * Storage for global variables, indexed by the slots the {@link Resolver} assigns.
+ *
+ * <p>Slots that have been resolved but not yet defined hold {@link #UNDEFINED}, so reading them
+ * reports an undefined variable just as an unknown name would.
+ */
 final class Environment {
 
-  private final Map<String, Object> values = new HashMap<>();
+  private static final Object UNDEFINED = new Object();
 
-  Object get(Token name) {
-    if (values.containsKey(name.lexeme)) {
-      return values.get(name.lexeme);
+  private Object[] values;
+
+  /**
+   * How many top-level statements have run to completion here, counted by code that stops with a
+   * runtime error by throwing and so cannot return a count itself.
+   */
+  private int completed = 0;
+
+  Environment(int size) {
+    values = new Object[size];
+    Arrays.fill(values, UNDEFINED);
+  }
+
+  boolean isDefined(int slot) {
+    return slot < values.length && values[slot] != UNDEFINED;
+  }
+
+  /** Returns the value in a slot that {@link #isDefined} says has been defined. */
+  Object get(int slot) {
+    return values[slot];
+  }
+
+  Object get(Token name, int slot) {
+    if (slot < values.length) {
+      Object value = values[slot];
+      if (value != UNDEFINED) {
+        return value;
+      }
     }
     throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
   }
 
-  void define(String name, Object value) {
-    values.put(name, value);
+  void define(int slot, Object value) {
+    if (slot >= values.length) {
+      int oldLength = values.length;
+      values = Arrays.copyOf(values, Math.max(slot + 1, oldLength * 2));
+      Arrays.fill(values, oldLength, values.length, UNDEFINED);
+    }
+    values[slot] = value;
+  }
+
+  void completeStatement() {
+    completed++;
+  }
+
+  int completed() {
+    return completed;
+  }
+
+  void assign(Token name, int slot, Object value) {
+    if (slot < values.length && values[slot] != UNDEFINED) {
+      values[slot] = value;
+      return;
+    }
+    throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
   }
 }
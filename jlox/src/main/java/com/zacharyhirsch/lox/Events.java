@@ -0,0 +1,93 @@
+package com.zacharyhirsch.lox;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * The Java Flight Recorder events jlox emits, so a recording can line scripts up with GC pauses
+ * and CPU samples.
+ *
+ * <p>The phase events only record phases that take at least their {@link Threshold}, and none of
+ * the events take a stack trace, so recordings stay small under load; a recording's settings can
+ * lower the thresholds or turn events off.
+ *
+ * <p>Loading an event class registers it with Flight Recorder, which costs more than running a
+ * small script, so callers check {@link #enabled} before creating an event.
+ */
+final class Events {
+
+  private Events() {}
+
+  /** Whether Flight Recorder has started, such as by a recording, so events can be recorded. */
+  static boolean enabled() {
+    return FlightRecorder.isInitialized();
+  }
+
+  /** {@link Scanner} turning a whole source into tokens. */
+  @Name("lox.Scan")
+  @Label("Scan")
+  @Category("Lox")
+  @Threshold("1 ms")
+  @StackTrace(false)
+  static final class Scan extends Event {
+
+    @Label("Source Length")
+    @Description("Characters of source scanned")
+    int sourceLength;
+
+    @Label("Tokens")
+    int tokens;
+  }
+
+  /** {@link Parser} building the statements of a whole token stream. */
+  @Name("lox.Parse")
+  @Label("Parse")
+  @Category("Lox")
+  @Threshold("1 ms")
+  @StackTrace(false)
+  static final class Parse extends Event {
+
+    @Label("Statements")
+    int statements;
+
+    @Label("Errors")
+    @Description("Syntax errors reported")
+    int errors;
+  }
+
+  /** {@link Interpreter} running a program's statements. */
+  @Name("lox.Execute")
+  @Label("Execute")
+  @Category("Lox")
+  @Threshold("1 ms")
+  @StackTrace(false)
+  static final class Execute extends Event {
+
+    @Label("Statements Executed")
+    @Description("Top-level statements that ran to completion")
+    int statements;
+  }
+
+  /**
+   * A runtime error from any backend. It takes no time, so it has no threshold; it is only
+   * recorded when a script fails, and can be turned off on its own.
+   */
+  @Name("lox.RuntimeError")
+  @Label("Runtime Error")
+  @Category("Lox")
+  @StackTrace(false)
+  static final class RuntimeError extends Event {
+
+    @Label("Line")
+    int line;
+
+    @Label("Message")
+    String message;
+  }
+}
@@ -27,6 +27,7 @@ abstract class Expr {
 
     final Token name;
     final Expr value;
+    int slot = -1;
   }
   static class Binary extends Expr {
     Binary(Expr left, Token operator, Expr right) {
@@ -43,6 +44,7 @@ abstract class Expr {
     final Expr left;
     final Token operator;
     final Expr right;
+    BinarySpecialization specialization = BinarySpecialization.UNINITIALIZED;
   }
   static class Grouping extends Expr {
     Grouping(Expr expression) {
@@ -109,6 +111,7 @@ abstract class Expr {
     }
 
     final Token name;
+    int slot = -1;
   }
 
   abstract <R> R accept(Visitor<R> visitor);
@@ -0,0 +1,86 @@
+package com.zacharyhirsch.lox;
+
+import java.util.Arrays;
+
+/**
+ * The expressions a pass is in the middle of, for walking a tree without recursing, so that how
+ * deeply it nests is limited by the heap rather than the thread's stack.
+ *
+ * <p>Each entry holds how many times it has been {@linkplain #next visited}. A pass looks at the
+ * top entry, and uses the count to decide whether to push its next operand or finish it: a binary
+ * operator pushes its left operand the first time, its right the second, and is popped the third.
+ */
+final class ExprStack {
+
+  /**
+   * How deeply a statement may nest and still be run by the passes that recurse, which are faster.
+   * The {@link Resolver} records each statement's depth, and deeper ones are run with a stack.
+   */
+  static final int RECURSION_LIMIT = 256;
+
+  private Expr[] exprs = new Expr[16];
+  private int[] visits = new int[16];
+  private int size = 0;
+
+  void push(Expr expr) {
+    if (size == exprs.length) {
+      exprs = Arrays.copyOf(exprs, size * 2);
+      visits = Arrays.copyOf(visits, size * 2);
+    }
+    exprs[size] = expr;
+    visits[size++] = 0;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  int size() {
+    return size;
+  }
+
+  Expr peek() {
+    return exprs[size - 1];
+  }
+
+  /** Returns how many times the top entry has been visited before, and counts this visit. */
+  int next() {
+    return visits[size - 1]++;
+  }
+
+  Expr pop() {
+    Expr expr = exprs[--size];
+    exprs[size] = null;
+    return expr;
+  }
+
+  /**
+   * Returns the operand of {@code expr} to push on the given visit, counting from zero, or null
+   * once it has no more. Operands come left to right, as they are evaluated.
+   */
+  static Expr operand(Expr expr, int visit) {
+    if (expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary) expr;
+      return visit == 0 ? binary.left : visit == 1 ? binary.right : null;
+    } else if (expr instanceof Expr.Unary) {
+      return visit == 0 ? ((Expr.Unary) expr).right : null;
+    } else if (expr instanceof Expr.Grouping) {
+      return visit == 0 ? ((Expr.Grouping) expr).expression : null;
+    } else if (expr instanceof Expr.Assign) {
+      return visit == 0 ? ((Expr.Assign) expr).value : null;
+    } else if (expr instanceof Expr.Ternary) {
+      Expr.Ternary ternary = (Expr.Ternary) expr;
+      switch (visit) {
+        case 0:
+          return ternary.predicate;
+        case 1:
+          return ternary.t;
+        case 2:
+          return ternary.f;
+        default:
+          return null;
+      }
+    }
+    return null;
+  }
+}
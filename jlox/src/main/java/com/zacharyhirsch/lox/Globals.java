@@ -0,0 +1,73 @@
+package com.zacharyhirsch.lox;
+
+import java.util.Arrays;
+
+/**
+ * The global variables of a {@link Context}, keyed by the {@link Symbols symbol} it interned each
+ * name to.
+ *
+ * <p>An open-addressing table over parallel arrays of symbols and values, so that a script that
+ * defines tens of thousands of globals costs two arrays rather than an entry object per variable.
+ * Variables are never removed.
+ */
+final class Globals {
+
+  /** What {@link #get} returns for a symbol that has no value, as nil is null. */
+  static final Object ABSENT = new Object();
+
+  private static final int EMPTY = -1;
+
+  private int[] symbols = empty(16);
+  private Object[] values = new Object[16];
+  private int size = 0;
+
+  Object get(int symbol) {
+    int mask = symbols.length - 1;
+    for (int i = Symbols.hash(symbol) & mask; symbols[i] != EMPTY; i = (i + 1) & mask) {
+      if (symbols[i] == symbol) {
+        return values[i];
+      }
+    }
+    return ABSENT;
+  }
+
+  void put(int symbol, Object value) {
+    int mask = symbols.length - 1;
+    int i = Symbols.hash(symbol) & mask;
+    for (; symbols[i] != EMPTY; i = (i + 1) & mask) {
+      if (symbols[i] == symbol) {
+        values[i] = value;
+        return;
+      }
+    }
+    symbols[i] = symbol;
+    values[i] = value;
+    if (2 * ++size > symbols.length) {
+      rehash();
+    }
+  }
+
+  private void rehash() {
+    int[] oldSymbols = symbols;
+    Object[] oldValues = values;
+    symbols = empty(oldSymbols.length * 2);
+    values = new Object[oldValues.length * 2];
+    int mask = symbols.length - 1;
+    for (int j = 0; j < oldSymbols.length; j++) {
+      if (oldSymbols[j] != EMPTY) {
+        int i = Symbols.hash(oldSymbols[j]) & mask;
+        while (symbols[i] != EMPTY) {
+          i = (i + 1) & mask;
+        }
+        symbols[i] = oldSymbols[j];
+        values[i] = oldValues[j];
+      }
+    }
+  }
+
+  private static int[] empty(int capacity) {
+    int[] symbols = new int[capacity];
+    Arrays.fill(symbols, EMPTY);
+    return symbols;
+  }
+}
@@ -4,20 +4,69 @@ import com.zacharyhirsch.lox.Expr.Variable;
 import com.zacharyhirsch.lox.Stmt.Expression;
 import com.zacharyhirsch.lox.Stmt.Print;
 import com.zacharyhirsch.lox.Stmt.Var;
+import java.util.ArrayList;
 import java.util.List;
 
 public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
-  private final Environment environment = new Environment();
+  /** Marks that the last {@link #evaluateNumber} produced a number. */
+  static final Object NUMBER = new Object();
 
-  void interpret(List<Stmt> statements) {
+  private final Environment environment;
+  private final Output out;
+  private final Diagnostics diagnostics;
+  /** Times every node evaluated, or null when not profiling, which costs only this check. */
+  private final Profiler profiler;
+
+  /** What the last {@link #evaluateNumber} produced if it was not a number. */
+  Object boxed = NUMBER;
+
+  Interpreter() {
+    this(new Environment(0), Output.STDOUT, new Diagnostics());
+  }
+
+  Interpreter(Environment environment, Output out, Diagnostics diagnostics) {
+    this(environment, out, diagnostics, null);
+  }
+
+  Interpreter(Environment environment, Output out, Diagnostics diagnostics, Profiler profiler) {
+    this.environment = environment;
+    this.out = out;
+    this.diagnostics = diagnostics;
+    this.profiler = profiler;
+  }
+
+  /** Runs {@code statements}, returning how many of them ran to completion. */
+  int interpret(List<Stmt> statements) {
+    Events.Execute event = null;
+    if (Events.enabled()) {
+      event = new Events.Execute();
+      event.begin();
+    }
+    int executed = 0;
     try {
       for (Stmt statement : statements) {
         execute(statement);
+        executed++;
       }
     } catch (RuntimeError error) {
-      Lox.runtimeError(error);
+      diagnostics.runtimeError(error);
     }
+    if (event != null) {
+      event.end();
+      if (event.shouldCommit()) {
+        event.statements = executed;
+        event.commit();
+      }
+    }
+    return executed;
+  }
+
+  @Override
+  public Object visitAssignExpr(Expr.Assign expr) {
+    Object value = evaluate(expr.value);
+    environment.assign(expr.name, expr.slot, value);
+    return value;
   }
 
   @Override
@@ -32,81 +81,173 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   @Override
   public Object visitBinaryExpr(Expr.Binary expr) {
-    Object left = evaluate(expr.left);
-    Object right = evaluate(expr.right);
+    double value = evaluateBinary(expr);
+    return boxed == NUMBER ? (Object) value : boxed;
+  }
+
+  @Override
+  public Object visitUnaryExpr(Expr.Unary expr) {
     switch (expr.operator.type) {
+      case BANG:
+        return !isTruthy(evaluate(expr.right));
       case MINUS:
-        checkNumberOperands(expr.operator, left, right);
-        return (double) left - (double) right;
+        return evaluateNegation(expr);
+    }
+    return null;
+  }
+
+  @Override
+  public Object visitVariableExpr(Variable expr) {
+    return environment.get(expr.name, expr.slot);
+  }
+
+  /**
+   * Evaluates {@code expr} without boxing when it produces a number.
+   *
+   * <p>If the value turns out not to be a number, it is left in {@link #boxed} and the returned
+   * double is meaningless. Otherwise {@link #boxed} is {@link #NUMBER}. Callers must read {@link
+   * #boxed} before evaluating anything else.
+   */
+  double evaluateNumber(Expr expr) {
+    if (profiler == null) {
+      return evaluateNumberNode(expr);
+    }
+    profiler.enter(expr);
+    try {
+      return evaluateNumberNode(expr);
+    } finally {
+      profiler.exit();
+    }
+  }
+
+  private double evaluateNumberNode(Expr expr) {
+    if (expr instanceof Expr.Binary) {
+      return evaluateBinary((Expr.Binary) expr);
+    } else if (expr instanceof Expr.Literal) {
+      return unbox(((Expr.Literal) expr).value);
+    } else if (expr instanceof Expr.Variable) {
+      Expr.Variable variable = (Expr.Variable) expr;
+      return unbox(environment.get(variable.name, variable.slot));
+    } else if (expr instanceof Expr.Grouping) {
+      return evaluateNumber(((Expr.Grouping) expr).expression);
+    } else if (expr instanceof Expr.Unary) {
+      Expr.Unary unary = (Expr.Unary) expr;
+      if (unary.operator.type == TokenType.MINUS) {
+        return evaluateNegation(unary);
+      }
+    } else if (expr instanceof Expr.Ternary) {
+      Expr.Ternary ternary = (Expr.Ternary) expr;
+      return isTruthy(evaluate(ternary.predicate))
+          ? evaluateNumber(ternary.t)
+          : evaluateNumber(ternary.f);
+    }
+    return unbox(expr.accept(this));
+  }
+
+  private double unbox(Object value) {
+    if (value instanceof Double) {
+      boxed = NUMBER;
+      return (double) value;
+    }
+    boxed = value;
+    return 0;
+  }
+
+  /** Evaluates a binary operator with the variant its site has specialized itself into. */
+  private double evaluateBinary(Expr.Binary expr) {
+    return expr.specialization.evaluate(this, expr);
+  }
+
+  /**
+   * Finishes evaluating a site whose guard failed, after rewriting it to {@link
+   * BinarySpecialization#GENERIC}. The right operand's value is still in {@link #boxed}.
+   */
+  double despecialize(Expr.Binary expr, double left, Object leftBoxed, double right) {
+    expr.specialization = BinarySpecialization.GENERIC;
+    return evaluateGeneric(expr, left, leftBoxed, right, boxed);
+  }
+
+  /** Applies a binary operator to operands that {@link #evaluateNumber} already produced. */
+  double evaluateGeneric(
+      Expr.Binary expr, double left, Object leftBoxed, double right, Object rightBoxed) {
+    boolean numbers = leftBoxed == NUMBER && rightBoxed == NUMBER;
+    switch (expr.operator.type) {
+      case MINUS:
+        checkNumberOperands(expr.operator, numbers);
+        return left - right;
       case SLASH:
-        checkNumberOperands(expr.operator, left, right);
-        double divisor = (double) right;
-        if (divisor == 0) {
+        checkNumberOperands(expr.operator, numbers);
+        if (right == 0) {
           throw new RuntimeError(expr.operator, "Division by zero.");
         }
-        return (double) left / divisor;
+        return left / right;
       case STAR:
-        checkNumberOperands(expr.operator, left, right);
-        return (double) left * (double) right;
+        checkNumberOperands(expr.operator, numbers);
+        return left * right;
       case PLUS:
-        if (left instanceof Double && right instanceof Double) {
-          return (double) left + (double) right;
+        {
+          if (numbers) {
+            return left + right;
+          }
+          Object leftValue = leftBoxed == NUMBER ? (Object) left : leftBoxed;
+          Object rightValue = rightBoxed == NUMBER ? (Object) right : rightBoxed;
+          if (Rope.isString(leftValue) || Rope.isString(rightValue)) {
+            boxed = Rope.concat(leftValue, rightValue);
+            return 0;
+          }
+          throw new RuntimeError(
+              expr.operator, "Operands must be two numbers or at least one string.");
         }
-        if (left instanceof String || right instanceof String) {
-          return stringify(left) + stringify(right);
-        }
-        throw new RuntimeError(
-            expr.operator, "Operands must be two numbers or at least one string.");
       case GREATER:
-        checkNumberOperands(expr.operator, left, right);
-        return (double) left > (double) right;
+        checkNumberOperands(expr.operator, numbers);
+        boxed = left > right;
+        return 0;
       case GREATER_EQUAL:
-        checkNumberOperands(expr.operator, left, right);
-        return (double) left >= (double) right;
+        checkNumberOperands(expr.operator, numbers);
+        boxed = left >= right;
+        return 0;
       case LESS:
-        checkNumberOperands(expr.operator, left, right);
-        return (double) left < (double) right;
+        checkNumberOperands(expr.operator, numbers);
+        boxed = left < right;
+        return 0;
       case LESS_EQUAL:
-        checkNumberOperands(expr.operator, left, right);
-        return (double) left <= (double) right;
+        checkNumberOperands(expr.operator, numbers);
+        boxed = left <= right;
+        return 0;
       case BANG_EQUAL:
-        return !isEqual(left, right);
+        boxed = !isEqual(left, leftBoxed, right, rightBoxed);
+        return 0;
       case EQUAL_EQUAL:
-        return isEqual(left, right);
+        boxed = isEqual(left, leftBoxed, right, rightBoxed);
+        return 0;
     }
-    return null;
+    boxed = null;
+    return 0;
   }
 
-  @Override
-  public Object visitUnaryExpr(Expr.Unary expr) {
-    Object right = evaluate(expr.right);
-    switch (expr.operator.type) {
-      case BANG:
-        return !isTruthy(right);
-      case MINUS:
-        checkNumberOperand(expr.operator, right);
-        return -(double) right;
+  private static void checkNumberOperands(Token operator, boolean numbers) {
+    if (!numbers) {
+      throw new RuntimeError(operator, "Operands must be numbers.");
     }
-    return null;
   }
 
-  @Override
-  public Object visitVariableExpr(Variable expr) {
-    return environment.get(expr.name);
-  }
-
-  private void checkNumberOperand(Token operator, Object operand) {
-    if (operand instanceof Double) {
-      return;
+  private static boolean isEqual(double left, Object leftBoxed, double right, Object rightBoxed) {
+    if (leftBoxed == NUMBER && rightBoxed == NUMBER) {
+      // Matches Double.equals, which isEqual uses for boxed numbers.
+      return Double.doubleToLongBits(left) == Double.doubleToLongBits(right);
+    }
+    if (leftBoxed == NUMBER || rightBoxed == NUMBER) {
+      return false;
     }
-    throw new RuntimeError(operator, "Operand must be a number.");
+    return isEqual(leftBoxed, rightBoxed);
   }
 
-  private void checkNumberOperands(Token operator, Object left, Object right) {
-    if (left instanceof Double && right instanceof Double) {
-      return;
+  private double evaluateNegation(Expr.Unary expr) {
+    double value = evaluateNumber(expr.right);
+    if (boxed != NUMBER) {
+      throw new RuntimeError(expr.operator, "Operand must be a number.");
     }
-    throw new RuntimeError(operator, "Operands must be numbers.");
+    return -value;
   }
 
   @Override
@@ -114,7 +255,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     return isTruthy(evaluate(expr.predicate)) ? evaluate(expr.t) : evaluate(expr.f);
   }
 
-  private boolean isTruthy(Object object) {
+  static boolean isTruthy(Object object) {
     if (object == null) {
       return false;
     }
@@ -124,36 +265,166 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     return true;
   }
 
-  private boolean isEqual(Object a, Object b) {
+  static boolean isEqual(Object a, Object b) {
     if (a == null && b == null) {
       return true;
     }
     if (a == null) {
       return false;
     }
+    if (b instanceof Rope) {
+      // String.equals only recognizes other Strings.
+      return b.equals(a);
+    }
     return a.equals(b);
   }
 
-  private String stringify(Object object) {
+  static String stringify(double number) {
+    String text = Double.toString(number);
+    if (text.endsWith(".0")) {
+      text = text.substring(0, text.length() - 2);
+    }
+    return text;
+  }
+
+  static String stringify(Object object) {
     if (object == null) {
       return "nil";
     }
     if (object instanceof Double) {
-      String text = object.toString();
-      if (text.endsWith(".0")) {
-        text = text.substring(0, text.length() - 2);
-      }
-      return text;
+      return stringify((double) object);
     }
     return object.toString();
   }
 
-  private Object evaluate(Expr expr) {
-    return expr.accept(this);
+  Object evaluate(Expr expr) {
+    if (profiler == null) {
+      return expr.accept(this);
+    }
+    profiler.enter(expr);
+    try {
+      return expr.accept(this);
+    } finally {
+      profiler.exit();
+    }
+  }
+
+  /**
+   * Runs {@code statements}, counting each one that completes in the environment and leaving any
+   * runtime error to the caller.
+   */
+  void execute(List<Stmt> statements) {
+    for (Stmt statement : statements) {
+      execute(statement);
+      environment.completeStatement();
+    }
   }
 
   private void execute(Stmt stmt) {
-    stmt.accept(this);
+    if (profiler == null) {
+      executeNode(stmt);
+      return;
+    }
+    profiler.enter(stmt);
+    try {
+      executeNode(stmt);
+    } finally {
+      profiler.exit();
+    }
+  }
+
+  private void executeNode(Stmt stmt) {
+    if (stmt.depth > ExprStack.RECURSION_LIMIT) {
+      executeDeep(stmt);
+    } else {
+      stmt.accept(this);
+    }
+  }
+
+  /**
+   * Runs a statement too deeply nested to evaluate by recursion. The profiler only sees the
+   * statement, not its expressions.
+   */
+  private void executeDeep(Stmt stmt) {
+    if (stmt instanceof Stmt.Var) {
+      Stmt.Var var = (Stmt.Var) stmt;
+      environment.define(var.slot, evaluateDeep(var.initializer));
+    } else if (stmt instanceof Stmt.Print) {
+      out.printValue(evaluateDeep(((Stmt.Print) stmt).expression));
+    } else {
+      evaluateDeep(((Stmt.Expression) stmt).expression);
+    }
+  }
+
+  /**
+   * Evaluates {@code expr} with an {@link ExprStack} rather than by recursion, keeping the value of
+   * each operand evaluated on a stack of its own until the operator that uses it pops it. Binary
+   * operators are always applied by {@link #evaluateGeneric}, without specializing them.
+   */
+  private Object evaluateDeep(Expr expr) {
+    ExprStack stack = new ExprStack();
+    List<Object> values = new ArrayList<>();
+    stack.push(expr);
+    while (!stack.isEmpty()) {
+      Expr top = stack.peek();
+      int visit = stack.next();
+      if (top instanceof Expr.Ternary) {
+        // Only the branch the predicate selects is evaluated, and its value is the ternary's.
+        Expr.Ternary ternary = (Expr.Ternary) top;
+        if (visit == 0) {
+          stack.push(ternary.predicate);
+        } else if (visit == 1) {
+          stack.push(isTruthy(pop(values)) ? ternary.t : ternary.f);
+        } else {
+          stack.pop();
+        }
+        continue;
+      }
+      Expr operand = ExprStack.operand(top, visit);
+      if (operand != null) {
+        stack.push(operand);
+        continue;
+      }
+      stack.pop();
+      if (top instanceof Expr.Binary) {
+        Expr.Binary binary = (Expr.Binary) top;
+        Object right = pop(values);
+        Object left = pop(values);
+        if (binary.operator.type == TokenType.COMMA) {
+          values.add(right);
+          continue;
+        }
+        double l = unbox(left);
+        Object leftBoxed = boxed;
+        double r = unbox(right);
+        double value = evaluateGeneric(binary, l, leftBoxed, r, boxed);
+        values.add(boxed == NUMBER ? (Object) value : boxed);
+      } else if (top instanceof Expr.Unary) {
+        Expr.Unary unary = (Expr.Unary) top;
+        Object right = pop(values);
+        if (unary.operator.type == TokenType.BANG) {
+          values.add(!isTruthy(right));
+        } else if (right instanceof Double) {
+          values.add(-(double) right);
+        } else {
+          throw new RuntimeError(unary.operator, "Operand must be a number.");
+        }
+      } else if (top instanceof Expr.Assign) {
+        Expr.Assign assign = (Expr.Assign) top;
+        Object value = pop(values);
+        environment.assign(assign.name, assign.slot, value);
+        values.add(value);
+      } else if (top instanceof Expr.Grouping) {
+        // Its value is its expression's, which is already on the stack.
+      } else {
+        values.add(top.accept(this));
+      }
+    }
+    return pop(values);
+  }
+
+  private static Object pop(List<Object> values) {
+    return values.remove(values.size() - 1);
   }
 
   @Override
@@ -164,8 +435,12 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   @Override
   public Void visitPrintStmt(Print stmt) {
-    Object value = evaluate(stmt.expression);
-    System.out.println(stringify(value));
+    double number = evaluateNumber(stmt.expression);
+    if (boxed == NUMBER) {
+      out.printNumber(number);
+    } else {
+      out.printValue(boxed);
+    }
     return null;
   }
 
@@ -175,7 +450,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     if (stmt.initializer != null) {
       value = evaluate(stmt.initializer);
     }
-    environment.define(stmt.name.lexeme, value);
+    environment.define(stmt.slot, value);
     return null;
   }
 }
@@ -0,0 +1,626 @@
+package com.zacharyhirsch.lox;
+
+import static org.objectweb.asm.Opcodes.AALOAD;
+import static org.objectweb.asm.Opcodes.ACC_FINAL;
+import static org.objectweb.asm.Opcodes.ACC_PRIVATE;
+import static org.objectweb.asm.Opcodes.ACC_STATIC;
+import static org.objectweb.asm.Opcodes.ACONST_NULL;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.ASTORE;
+import static org.objectweb.asm.Opcodes.BIPUSH;
+import static org.objectweb.asm.Opcodes.CHECKCAST;
+import static org.objectweb.asm.Opcodes.DADD;
+import static org.objectweb.asm.Opcodes.DLOAD;
+import static org.objectweb.asm.Opcodes.DMUL;
+import static org.objectweb.asm.Opcodes.DNEG;
+import static org.objectweb.asm.Opcodes.DSTORE;
+import static org.objectweb.asm.Opcodes.DSUB;
+import static org.objectweb.asm.Opcodes.DUP2_X1;
+import static org.objectweb.asm.Opcodes.DUP2_X2;
+import static org.objectweb.asm.Opcodes.GOTO;
+import static org.objectweb.asm.Opcodes.H_INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.ICONST_0;
+import static org.objectweb.asm.Opcodes.ICONST_1;
+import static org.objectweb.asm.Opcodes.IFEQ;
+import static org.objectweb.asm.Opcodes.INSTANCEOF;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL;
+import static org.objectweb.asm.Opcodes.IXOR;
+import static org.objectweb.asm.Opcodes.POP;
+import static org.objectweb.asm.Opcodes.POP2;
+import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.SIPUSH;
+import static org.objectweb.asm.Opcodes.V21;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+/**
+ * Translates a resolved program into JVM bytecode, loaded as hidden classes, so that HotSpot can
+ * compile Lox code directly instead of the {@link Interpreter}'s visitors.
+ *
+ * <p>Statements are compiled in segments of up to {@link #SEGMENT_SIZE}, each a hidden class with
+ * a static method {@code run(Environment, Output, Object[])}, with the tokens it needs for error
+ * messages passed in the array. The statements themselves are spread over methods that {@code run}
+ * calls in turn, each kept under the size HotSpot refuses to compile. A segment that does not fit
+ * in a class is split in half until it does; a single statement that still cannot be compiled, or
+ * that nests too deeply to compile, is left to the interpreter. Each statement counts itself in the
+ * {@link Environment} as it completes, so a run a runtime error stops still knows how far it got.
+ *
+ * <p>Values are kept unboxed when an expression is known to produce a number or a boolean, and
+ * boxed otherwise. Arithmetic and comparisons on boxed values unbox them through {@link
+ * JitRuntime}, which checks operands exactly as the interpreter does. {@code +}, {@code ==} and
+ * {@code !=} handle two numbers inline and send anything else to an {@link OperatorSite}.
+ *
+ * <p>A native image cannot define classes once it is running, so there every program is left to
+ * the interpreter.
+ */
+final class JitCompiler implements Expr.Visitor<JitCompiler.Kind>, Stmt.Visitor<Void> {
+
+  private static final int SEGMENT_SIZE = 256;
+
+  /**
+   * How many nodes to put in one method before starting another. At roughly a dozen bytes of
+   * bytecode per node, this keeps methods under HotSpot's 8000-byte limit for compiling them.
+   */
+  private static final int METHOD_NODES = 400;
+
+  /** Strings longer than this go in the constants array, as they may not fit in the class file. */
+  private static final int MAX_LDC_STRING = 16 * 1024;
+
+  private static final String CLASS_NAME = "com/zacharyhirsch/lox/JitCode";
+  private static final String RUNTIME = Type.getInternalName(JitRuntime.class);
+  private static final String INTERPRETER = Type.getInternalName(Interpreter.class);
+  private static final String ENVIRONMENT = Type.getInternalName(Environment.class);
+  private static final String OUTPUT = Type.getInternalName(Output.class);
+  private static final String TOKEN = Type.getInternalName(Token.class);
+  private static final String TOKEN_DESC = Type.getDescriptor(Token.class);
+
+  private static final Handle OPERATOR_BOOTSTRAP =
+      new Handle(
+          H_INVOKESTATIC,
+          Type.getInternalName(OperatorSite.class),
+          "bootstrap",
+          MethodType.methodType(
+                  CallSite.class, MethodHandles.Lookup.class, String.class, MethodType.class)
+              .toMethodDescriptorString(),
+          false);
+
+  private static final MethodType RUN_TYPE =
+      MethodType.methodType(void.class, Environment.class, Output.class, Object[].class);
+
+  private static final int ENVIRONMENT_LOCAL = 0;
+  private static final int OUTPUT_LOCAL = 1;
+  private static final int CONSTANTS_LOCAL = 2;
+  private static final int TEMP_LOCAL = 3;
+  private static final int LEFT_LOCAL = 3;
+  private static final int RIGHT_LOCAL = 5;
+
+  /** What an expression leaves on the operand stack. */
+  enum Kind {
+    /** A double. */
+    NUMBER,
+    /** An int that is 0 or 1. */
+    BOOLEAN,
+    /** An Object holding any Lox value. */
+    OBJECT,
+  }
+
+  private MethodVisitor mv;
+  private int nodes;
+  private final List<Object> constants = new ArrayList<>();
+  private final Map<Object, Integer> constantIndexes = new IdentityHashMap<>();
+
+  private JitCompiler() {}
+
+  static JitProgram compile(List<Stmt> statements) {
+    List<JitProgram.Segment> segments = new ArrayList<>();
+    OperatorSite.Statistics sites = new OperatorSite.Statistics();
+    if (inNativeImage()) {
+      segments.add(new JitProgram.Segment(statements));
+      return new JitProgram(segments, sites);
+    }
+    for (int start = 0; start < statements.size(); start += SEGMENT_SIZE) {
+      int end = Math.min(statements.size(), start + SEGMENT_SIZE);
+      compileSegment(statements.subList(start, end), sites, segments);
+    }
+    return new JitProgram(segments, sites);
+  }
+
+  /**
+   * Whether this is a native image running, as opposed to being built, as GraalVM's {@code
+   * ImageInfo.inImageRuntimeCode} reports it without depending on GraalVM.
+   */
+  private static boolean inNativeImage() {
+    return "runtime".equals(System.getProperty("org.graalvm.nativeimage.imagecode"));
+  }
+
+  private static void compileSegment(
+      List<Stmt> statements, OperatorSite.Statistics sites, List<JitProgram.Segment> segments) {
+    JitProgram.Segment segment = new JitCompiler().tryCompile(statements, sites);
+    if (segment != null) {
+      segments.add(segment);
+    } else if (statements.size() == 1) {
+      segments.add(new JitProgram.Segment(statements));
+    } else {
+      int middle = statements.size() / 2;
+      compileSegment(statements.subList(0, middle), sites, segments);
+      compileSegment(statements.subList(middle, statements.size()), sites, segments);
+    }
+  }
+
+  /**
+   * Returns the compiled segment, or null if the statements do not fit, cannot be compiled, or nest
+   * too deeply to generate code for without recursing past {@link ExprStack#RECURSION_LIMIT}.
+   */
+  private JitProgram.Segment tryCompile(List<Stmt> statements, OperatorSite.Statistics sites) {
+    for (Stmt statement : statements) {
+      if (statement.depth > ExprStack.RECURSION_LIMIT) {
+        return null;
+      }
+    }
+    ClassWriter cw =
+        new ClassWriter(ClassWriter.COMPUTE_FRAMES) {
+          @Override
+          protected String getCommonSuperClass(String type1, String type2) {
+            return "java/lang/Object";
+          }
+        };
+    cw.visit(V21, ACC_FINAL, CLASS_NAME, null, "java/lang/Object", null);
+    byte[] bytes;
+    try {
+      int methods = 0;
+      for (int i = 0; i < statements.size(); methods++) {
+        beginMethod(cw, "s" + methods);
+        nodes = 0;
+        while (i < statements.size() && nodes < METHOD_NODES) {
+          statements.get(i++).accept(this);
+          mv.visitVarInsn(ALOAD, ENVIRONMENT_LOCAL);
+          mv.visitMethodInsn(INVOKEVIRTUAL, ENVIRONMENT, "completeStatement", "()V", false);
+        }
+        endMethod();
+      }
+      beginMethod(cw, "run");
+      for (int i = 0; i < methods; i++) {
+        mv.visitVarInsn(ALOAD, ENVIRONMENT_LOCAL);
+        mv.visitVarInsn(ALOAD, OUTPUT_LOCAL);
+        mv.visitVarInsn(ALOAD, CONSTANTS_LOCAL);
+        mv.visitMethodInsn(
+            INVOKESTATIC, CLASS_NAME, "s" + i, RUN_TYPE.toMethodDescriptorString(), false);
+      }
+      endMethod();
+      cw.visitEnd();
+      bytes = cw.toByteArray();
+    } catch (IndexOutOfBoundsException | StackOverflowError e) {
+      // Too large for one method or class (ASM's MethodTooLargeException and
+      // ClassTooLargeException), or too deeply nested to generate.
+      return null;
+    }
+    try {
+      // The operator sites' bootstrap method finds the statistics through the class data.
+      MethodHandles.Lookup lookup =
+          MethodHandles.lookup().defineHiddenClassWithClassData(bytes, sites, true);
+      MethodHandle code = lookup.findStatic(lookup.lookupClass(), "run", RUN_TYPE);
+      return new JitProgram.Segment(code, constants.toArray());
+    } catch (ReflectiveOperationException | LinkageError e) {
+      return null;
+    }
+  }
+
+  private void beginMethod(ClassWriter cw, String name) {
+    mv =
+        cw.visitMethod(
+            ACC_PRIVATE | ACC_STATIC, name, RUN_TYPE.toMethodDescriptorString(), null, null);
+    mv.visitCode();
+  }
+
+  private void endMethod() {
+    mv.visitInsn(RETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    pop(compile(stmt.expression));
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    mv.visitVarInsn(ALOAD, OUTPUT_LOCAL);
+    Kind kind = compile(stmt.expression);
+    if (kind == Kind.NUMBER) {
+      mv.visitMethodInsn(INVOKEVIRTUAL, OUTPUT, "printNumber", "(D)V", false);
+    } else {
+      box(kind);
+      mv.visitMethodInsn(INVOKEVIRTUAL, OUTPUT, "printValue", "(Ljava/lang/Object;)V", false);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    mv.visitVarInsn(ALOAD, ENVIRONMENT_LOCAL);
+    pushInt(stmt.slot);
+    if (stmt.initializer != null) {
+      box(compile(stmt.initializer));
+    } else {
+      mv.visitInsn(ACONST_NULL);
+    }
+    mv.visitMethodInsn(INVOKEVIRTUAL, ENVIRONMENT, "define", "(ILjava/lang/Object;)V", false);
+    return null;
+  }
+
+  @Override
+  public Kind visitAssignExpr(Expr.Assign expr) {
+    box(compile(expr.value));
+    mv.visitVarInsn(ASTORE, TEMP_LOCAL);
+    mv.visitVarInsn(ALOAD, ENVIRONMENT_LOCAL);
+    pushConstant(expr.name);
+    pushInt(expr.slot);
+    mv.visitVarInsn(ALOAD, TEMP_LOCAL);
+    mv.visitMethodInsn(
+        INVOKEVIRTUAL, ENVIRONMENT, "assign", "(" + TOKEN_DESC + "ILjava/lang/Object;)V", false);
+    mv.visitVarInsn(ALOAD, TEMP_LOCAL);
+    return Kind.OBJECT;
+  }
+
+  @Override
+  public Kind visitBinaryExpr(Expr.Binary expr) {
+    if (expr.operator.type == TokenType.COMMA) {
+      pop(compile(expr.left));
+      return compile(expr.right);
+    }
+    Kind left = compile(expr.left);
+    Kind right = compile(expr.right);
+    switch (expr.operator.type) {
+      case PLUS:
+      case EQUAL_EQUAL:
+      case BANG_EQUAL:
+        if (left != Kind.NUMBER || right != Kind.NUMBER) {
+          return operatorSite(left, right, expr.operator);
+        }
+        break;
+      default:
+        toNumbers(left, right, expr.operator);
+        break;
+    }
+    switch (expr.operator.type) {
+      case PLUS:
+        mv.visitInsn(DADD);
+        return Kind.NUMBER;
+      case MINUS:
+        mv.visitInsn(DSUB);
+        return Kind.NUMBER;
+      case STAR:
+        mv.visitInsn(DMUL);
+        return Kind.NUMBER;
+      case SLASH:
+        pushConstant(expr.operator);
+        mv.visitMethodInsn(INVOKESTATIC, RUNTIME, "divide", "(DD" + TOKEN_DESC + ")D", false);
+        return Kind.NUMBER;
+      case GREATER:
+        return compare("greater");
+      case GREATER_EQUAL:
+        return compare("greaterEqual");
+      case LESS:
+        return compare("less");
+      case LESS_EQUAL:
+        return compare("lessEqual");
+      case EQUAL_EQUAL:
+        return compare("equal");
+      case BANG_EQUAL:
+        compare("equal");
+        mv.visitInsn(ICONST_1);
+        mv.visitInsn(IXOR);
+        return Kind.BOOLEAN;
+      default:
+        throw new IllegalArgumentException("Unknown operator " + expr.operator.type + ".");
+    }
+  }
+
+  @Override
+  public Kind visitGroupingExpr(Expr.Grouping expr) {
+    return compile(expr.expression);
+  }
+
+  @Override
+  public Kind visitLiteralExpr(Expr.Literal expr) {
+    Object value = expr.value;
+    if (value == null) {
+      mv.visitInsn(ACONST_NULL);
+      return Kind.OBJECT;
+    } else if (value instanceof Boolean) {
+      mv.visitInsn((boolean) value ? ICONST_1 : ICONST_0);
+      return Kind.BOOLEAN;
+    } else if (value instanceof Double) {
+      mv.visitLdcInsn(value);
+      return Kind.NUMBER;
+    } else if (((String) value).length() <= MAX_LDC_STRING) {
+      mv.visitLdcInsn(value);
+      return Kind.OBJECT;
+    }
+    pushConstant(value);
+    return Kind.OBJECT;
+  }
+
+  @Override
+  public Kind visitUnaryExpr(Expr.Unary expr) {
+    Kind operand = compile(expr.right);
+    if (expr.operator.type == TokenType.BANG) {
+      truthy(operand);
+      mv.visitInsn(ICONST_1);
+      mv.visitInsn(IXOR);
+      return Kind.BOOLEAN;
+    }
+    if (operand == Kind.NUMBER) {
+      mv.visitInsn(DNEG);
+    } else {
+      box(operand);
+      pushConstant(expr.operator);
+      mv.visitMethodInsn(
+          INVOKESTATIC, RUNTIME, "negate", "(Ljava/lang/Object;" + TOKEN_DESC + ")D", false);
+    }
+    return Kind.NUMBER;
+  }
+
+  @Override
+  public Kind visitTernaryExpr(Expr.Ternary expr) {
+    Kind kind = kindOf(expr);
+    Label otherwise = new Label();
+    Label end = new Label();
+    truthy(compile(expr.predicate));
+    mv.visitJumpInsn(IFEQ, otherwise);
+    convert(compile(expr.t), kind);
+    mv.visitJumpInsn(GOTO, end);
+    mv.visitLabel(otherwise);
+    convert(compile(expr.f), kind);
+    mv.visitLabel(end);
+    return kind;
+  }
+
+  @Override
+  public Kind visitVariableExpr(Expr.Variable expr) {
+    mv.visitVarInsn(ALOAD, ENVIRONMENT_LOCAL);
+    pushConstant(expr.name);
+    pushInt(expr.slot);
+    mv.visitMethodInsn(
+        INVOKEVIRTUAL, ENVIRONMENT, "get", "(" + TOKEN_DESC + "I)Ljava/lang/Object;", false);
+    return Kind.OBJECT;
+  }
+
+  private Kind compile(Expr expr) {
+    nodes++;
+    return expr.accept(this);
+  }
+
+  /**
+   * Returns the kind {@link #compile} will produce for {@code expr} without compiling it, so that
+   * both arms of a ternary can be brought to the same kind.
+   */
+  private static Kind kindOf(Expr expr) {
+    while (expr instanceof Expr.Grouping) {
+      expr = ((Expr.Grouping) expr).expression;
+    }
+    if (expr instanceof Expr.Literal) {
+      Object value = ((Expr.Literal) expr).value;
+      if (value instanceof Double) {
+        return Kind.NUMBER;
+      }
+      return value instanceof Boolean ? Kind.BOOLEAN : Kind.OBJECT;
+    } else if (expr instanceof Expr.Unary) {
+      return ((Expr.Unary) expr).operator.type == TokenType.BANG ? Kind.BOOLEAN : Kind.NUMBER;
+    } else if (expr instanceof Expr.Ternary) {
+      Kind t = kindOf(((Expr.Ternary) expr).t);
+      return t == kindOf(((Expr.Ternary) expr).f) ? t : Kind.OBJECT;
+    } else if (expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary) expr;
+      switch (binary.operator.type) {
+        case COMMA:
+          return kindOf(binary.right);
+        case PLUS:
+          boolean numbers =
+              kindOf(binary.left) == Kind.NUMBER && kindOf(binary.right) == Kind.NUMBER;
+          return numbers ? Kind.NUMBER : Kind.OBJECT;
+        case MINUS:
+        case STAR:
+        case SLASH:
+          return Kind.NUMBER;
+        default:
+          return Kind.BOOLEAN;
+      }
+    }
+    return Kind.OBJECT;
+  }
+
+  /**
+   * Turns the two operands on the stack into doubles, failing as the interpreter does if either
+   * is not a number. These operators only accept numbers, so there is nothing for an {@link
+   * OperatorSite} to cache; only operands not already known to be numbers are checked.
+   */
+  private void toNumbers(Kind left, Kind right, Token operator) {
+    if (left == Kind.NUMBER && right == Kind.NUMBER) {
+      return;
+    }
+    if (left == Kind.NUMBER) {
+      box(right);
+      toNumber(operator);
+    } else if (right == Kind.NUMBER) {
+      // [left, right] -> [right, left], check left, then swap the two doubles back.
+      mv.visitInsn(DUP2_X1);
+      mv.visitInsn(POP2);
+      box(left);
+      toNumber(operator);
+      mv.visitInsn(DUP2_X2);
+      mv.visitInsn(POP2);
+    } else {
+      box(right);
+      mv.visitVarInsn(ASTORE, TEMP_LOCAL);
+      box(left);
+      toNumber(operator);
+      mv.visitVarInsn(ALOAD, TEMP_LOCAL);
+      toNumber(operator);
+    }
+  }
+
+  private void toNumber(Token operator) {
+    pushConstant(operator);
+    mv.visitMethodInsn(
+        INVOKESTATIC, RUNTIME, "toNumber", "(Ljava/lang/Object;" + TOKEN_DESC + ")D", false);
+  }
+
+  /**
+   * Applies {@code +}, {@code ==} or {@code !=} to operands that might not be numbers. Numbers are
+   * handled inline; anything else goes to an {@link OperatorSite}, which caches the implementations
+   * for the operand types it sees.
+   */
+  private Kind operatorSite(Kind left, Kind right, Token operator) {
+    right = storeOperand(right, RIGHT_LOCAL);
+    left = storeOperand(left, LEFT_LOCAL);
+    Label slow = new Label();
+    Label end = new Label();
+    for (int i = 0; i < 2; i++) {
+      if ((i == 0 ? left : right) != Kind.NUMBER) {
+        mv.visitVarInsn(ALOAD, i == 0 ? LEFT_LOCAL : RIGHT_LOCAL);
+        mv.visitTypeInsn(INSTANCEOF, "java/lang/Double");
+        mv.visitJumpInsn(IFEQ, slow);
+      }
+    }
+    loadNumber(left, LEFT_LOCAL);
+    loadNumber(right, RIGHT_LOCAL);
+    String descriptor = "(" + descriptor(left) + descriptor(right);
+    Kind result;
+    if (operator.type == TokenType.PLUS) {
+      mv.visitInsn(DADD);
+      box(Kind.NUMBER);
+      descriptor += TOKEN_DESC + ")Ljava/lang/Object;";
+      result = Kind.OBJECT;
+    } else {
+      compare("equal");
+      if (operator.type == TokenType.BANG_EQUAL) {
+        mv.visitInsn(ICONST_1);
+        mv.visitInsn(IXOR);
+      }
+      descriptor += ")Z";
+      result = Kind.BOOLEAN;
+    }
+    mv.visitJumpInsn(GOTO, end);
+    mv.visitLabel(slow);
+    load(left, LEFT_LOCAL);
+    load(right, RIGHT_LOCAL);
+    if (operator.type == TokenType.PLUS) {
+      pushConstant(operator);
+    }
+    mv.visitInvokeDynamicInsn(operator.type.name(), descriptor, OPERATOR_BOOTSTRAP);
+    mv.visitLabel(end);
+    return result;
+  }
+
+  /** Stores an operand, boxing it unless it is a number, and returns the kind stored. */
+  private Kind storeOperand(Kind kind, int local) {
+    if (kind == Kind.NUMBER) {
+      mv.visitVarInsn(DSTORE, local);
+      return Kind.NUMBER;
+    }
+    box(kind);
+    mv.visitVarInsn(ASTORE, local);
+    return Kind.OBJECT;
+  }
+
+  private void load(Kind kind, int local) {
+    mv.visitVarInsn(kind == Kind.NUMBER ? DLOAD : ALOAD, local);
+  }
+
+  /** Loads a local known to hold a number, unboxing it if it is an Object. */
+  private void loadNumber(Kind kind, int local) {
+    load(kind, local);
+    if (kind != Kind.NUMBER) {
+      mv.visitTypeInsn(CHECKCAST, "java/lang/Double");
+      mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Double", "doubleValue", "()D", false);
+    }
+  }
+
+  private static String descriptor(Kind kind) {
+    return kind == Kind.NUMBER ? "D" : "Ljava/lang/Object;";
+  }
+
+  private Kind compare(String name) {
+    mv.visitMethodInsn(INVOKESTATIC, RUNTIME, name, "(DD)Z", false);
+    return Kind.BOOLEAN;
+  }
+
+  /** Replaces a value of {@code kind} with 1 if it is truthy and 0 if not. */
+  private void truthy(Kind kind) {
+    switch (kind) {
+      case NUMBER:
+        mv.visitInsn(POP2);
+        mv.visitInsn(ICONST_1);
+        break;
+      case BOOLEAN:
+        break;
+      case OBJECT:
+        mv.visitMethodInsn(INVOKESTATIC, INTERPRETER, "isTruthy", "(Ljava/lang/Object;)Z", false);
+        break;
+    }
+  }
+
+  private void convert(Kind from, Kind to) {
+    if (from != to) {
+      box(from);
+    }
+  }
+
+  private void box(Kind kind) {
+    if (kind == Kind.NUMBER) {
+      mv.visitMethodInsn(
+          INVOKESTATIC, "java/lang/Double", "valueOf", "(D)Ljava/lang/Double;", false);
+    } else if (kind == Kind.BOOLEAN) {
+      mv.visitMethodInsn(
+          INVOKESTATIC, "java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;", false);
+    }
+  }
+
+  private void pop(Kind kind) {
+    mv.visitInsn(kind == Kind.NUMBER ? POP2 : POP);
+  }
+
+  /** Loads {@code value} from the constants array, adding it if this is its first use. */
+  private void pushConstant(Object value) {
+    Integer index = constantIndexes.get(value);
+    if (index == null) {
+      index = constants.size();
+      constants.add(value);
+      constantIndexes.put(value, index);
+    }
+    mv.visitVarInsn(ALOAD, CONSTANTS_LOCAL);
+    pushInt(index);
+    mv.visitInsn(AALOAD);
+    if (value instanceof Token) {
+      mv.visitTypeInsn(CHECKCAST, TOKEN);
+    }
+  }
+
+  private void pushInt(int value) {
+    if (value >= -1 && value <= 5) {
+      mv.visitInsn(ICONST_0 + value);
+    } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+      mv.visitIntInsn(BIPUSH, value);
+    } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+      mv.visitIntInsn(SIPUSH, value);
+    } else {
+      mv.visitLdcInsn(value);
+    }
+  }
+}
@@ -0,0 +1,76 @@
+package com.zacharyhirsch.lox;
+
+import java.lang.invoke.MethodHandle;
+import java.util.List;
+
+/**
+ * A program translated by the {@link JitCompiler}: a sequence of segments, each either a generated
+ * method or statements left to the {@link Interpreter}.
+ */
+final class JitProgram {
+
+  private final Segment[] segments;
+  private final OperatorSite.Statistics sites;
+
+  JitProgram(List<Segment> segments, OperatorSite.Statistics sites) {
+    this.segments = segments.toArray(new Segment[0]);
+    this.sites = sites;
+  }
+
+  /** Summarizes the state of the operator sites this program has linked so far. */
+  String siteStatistics() {
+    return sites.toString();
+  }
+
+  /**
+   * Runs the program, returning how many of its top-level statements completed before any runtime
+   * error stopped it.
+   */
+  int run(Environment environment, Output out, Diagnostics diagnostics) {
+    Interpreter interpreter = null;
+    int start = environment.completed();
+    try {
+      for (Segment segment : segments) {
+        if (segment.code != null) {
+          segment.code.invokeExact(environment, out, segment.constants);
+        } else {
+          if (interpreter == null) {
+            interpreter = new Interpreter(environment, out, diagnostics);
+          }
+          interpreter.execute(segment.statements);
+        }
+      }
+      return environment.completed() - start;
+    } catch (RuntimeError error) {
+      diagnostics.runtimeError(error);
+      return environment.completed() - start;
+    } catch (RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable t) {
+      throw new IllegalStateException(t);
+    }
+  }
+
+  /**
+   * Either {@code code}, a {@code (Environment, Output, Object[])void} handle to run with {@code
+   * constants}, or, if it is null, {@code statements} to interpret.
+   */
+  static final class Segment {
+
+    final MethodHandle code;
+    final Object[] constants;
+    final List<Stmt> statements;
+
+    Segment(MethodHandle code, Object[] constants) {
+      this.code = code;
+      this.constants = constants;
+      this.statements = null;
+    }
+
+    Segment(List<Stmt> statements) {
+      this.code = null;
+      this.constants = null;
+      this.statements = statements;
+    }
+  }
+}
@@ -0,0 +1,107 @@
+package com.zacharyhirsch.lox;
+
+/**
+ * Operations that code generated by the {@link JitCompiler} calls, directly or as the generic case
+ * of an {@link OperatorSite}.
+ *
+ * <p>Operands arrive already evaluated, left then right, so each check fails with the same message
+ * and token as the {@link Interpreter} would.
+ */
+final class JitRuntime {
+
+  private JitRuntime() {}
+
+  static Object add(Object left, Object right, Token operator) {
+    if (left instanceof Double && right instanceof Double) {
+      return (double) left + (double) right;
+    }
+    if (Rope.isString(left) || Rope.isString(right)) {
+      return Rope.concat(left, right);
+    }
+    throw new RuntimeError(operator, "Operands must be two numbers or at least one string.");
+  }
+
+  /** Unboxes an operand of an arithmetic or comparison operator. */
+  static double toNumber(Object operand, Token operator) {
+    if (!(operand instanceof Double)) {
+      throw new RuntimeError(operator, "Operands must be numbers.");
+    }
+    return (double) operand;
+  }
+
+  static double subtract(Object left, Object right, Token operator) {
+    checkNumberOperands(operator, left, right);
+    return (double) left - (double) right;
+  }
+
+  static double multiply(Object left, Object right, Token operator) {
+    checkNumberOperands(operator, left, right);
+    return (double) left * (double) right;
+  }
+
+  static double divide(Object left, Object right, Token operator) {
+    checkNumberOperands(operator, left, right);
+    return divide((double) left, (double) right, operator);
+  }
+
+  static double divide(double left, double right, Token operator) {
+    if (right == 0) {
+      throw new RuntimeError(operator, "Division by zero.");
+    }
+    return left / right;
+  }
+
+  static boolean greater(double left, double right) {
+    return left > right;
+  }
+
+  static boolean greater(Object left, Object right, Token operator) {
+    checkNumberOperands(operator, left, right);
+    return (double) left > (double) right;
+  }
+
+  static boolean greaterEqual(double left, double right) {
+    return left >= right;
+  }
+
+  static boolean greaterEqual(Object left, Object right, Token operator) {
+    checkNumberOperands(operator, left, right);
+    return (double) left >= (double) right;
+  }
+
+  static boolean less(double left, double right) {
+    return left < right;
+  }
+
+  static boolean less(Object left, Object right, Token operator) {
+    checkNumberOperands(operator, left, right);
+    return (double) left < (double) right;
+  }
+
+  static boolean lessEqual(double left, double right) {
+    return left <= right;
+  }
+
+  static boolean lessEqual(Object left, Object right, Token operator) {
+    checkNumberOperands(operator, left, right);
+    return (double) left <= (double) right;
+  }
+
+  /** Compares numbers the way {@link Double#equals} does, as the interpreter does. */
+  static boolean equal(double left, double right) {
+    return Double.doubleToLongBits(left) == Double.doubleToLongBits(right);
+  }
+
+  static double negate(Object operand, Token operator) {
+    if (!(operand instanceof Double)) {
+      throw new RuntimeError(operator, "Operand must be a number.");
+    }
+    return -(double) operand;
+  }
+
+  private static void checkNumberOperands(Token operator, Object left, Object right) {
+    if (!(left instanceof Double && right instanceof Double)) {
+      throw new RuntimeError(operator, "Operands must be numbers.");
+    }
+  }
+}
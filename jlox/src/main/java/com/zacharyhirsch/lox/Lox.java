@@ -3,76 +3,293 @@ package com.zacharyhirsch.lox;
 import static com.zacharyhirsch.lox.LineReadingIterator.readLines;
 
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.SocketAddress;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
+import java.util.function.Supplier;
 
 final class Lox {
 
-  private static final Interpreter interpreter = new Interpreter();
-
-  static boolean hadError = false;
-  static boolean hadRuntimeError = false;
+  private static Engine.Backend backend = Engine.Backend.TREE;
+  private static boolean stream = false;
+  private static boolean siteStats = false;
+  private static Profiler profiler = null;
+  private static Path profileStacks = null;
+  private static Set<Optimizer.Pass> passes = EnumSet.allOf(Optimizer.Pass.class);
+  private static Path cacheDir = null;
+  private static long cacheSize = 64L << 20;
+  private static int jobs = Runtime.getRuntime().availableProcessors();
+  private static Path outputDir = null;
+  private static String serve = null;
+  private static int serverCache = 1024;
+  private static long serverCacheSize = 64L << 20;
+  private static int maxErrors = 100;
+  private static Diagnostics.Format format = Diagnostics.Format.TEXT;
+  private static Engine engine;
+  private static Diagnostics diagnostics;
+  private static Context context;
 
   public static void main(String[] args) throws IOException {
-    if (args.length > 1) {
-      System.out.println("Usage: jlox [script]");
-      System.exit(64);
-    } else if (args.length == 1) {
-      runFile(args[0]);
+    Runtime.getRuntime().addShutdownHook(new Thread(Output.STDOUT::flush));
+    int i = 0;
+    for (; i < args.length && args[i].startsWith("--"); i++) {
+      if (args[i].equals("--engine=vm")) {
+        backend = Engine.Backend.VM;
+      } else if (args[i].equals("--engine=tree")) {
+        backend = Engine.Backend.TREE;
+      } else if (args[i].equals("--engine=jit")) {
+        backend = Engine.Backend.JIT;
+      } else if (args[i].equals("--stream")) {
+        stream = true;
+      } else if (args[i].equals("--site-stats")) {
+        siteStats = true;
+      } else if (args[i].equals("--profile")) {
+        profiler = new Profiler();
+      } else if (args[i].startsWith("--profile=")) {
+        profiler = new Profiler();
+        profileStacks = Paths.get(args[i].substring("--profile=".length()));
+      } else if (args[i].startsWith("--optimize=")) {
+        passes = parsePasses(args[i].substring("--optimize=".length()));
+      } else if (args[i].startsWith("--cache-dir=")) {
+        cacheDir = Paths.get(args[i].substring("--cache-dir=".length()));
+      } else if (args[i].startsWith("--cache-size=")) {
+        cacheSize = parseSize(args[i].substring("--cache-size=".length()));
+      } else if (args[i].startsWith("--jobs=")) {
+        jobs = parseCount(args[i].substring("--jobs=".length()));
+      } else if (args[i].startsWith("--output-dir=")) {
+        outputDir = Paths.get(args[i].substring("--output-dir=".length()));
+      } else if (args[i].startsWith("--serve=")) {
+        serve = args[i].substring("--serve=".length());
+      } else if (args[i].startsWith("--server-cache=")) {
+        serverCache = parseCount(args[i].substring("--server-cache=".length()));
+      } else if (args[i].startsWith("--server-cache-size=")) {
+        serverCacheSize = parseSize(args[i].substring("--server-cache-size=".length()));
+      } else if (args[i].startsWith("--max-errors=")) {
+        maxErrors = parseCount(args[i].substring("--max-errors=".length()));
+      } else if (args[i].equals("--diagnostics=text")) {
+        format = Diagnostics.Format.TEXT;
+      } else if (args[i].equals("--diagnostics=json")) {
+        format = Diagnostics.Format.JSON;
+      } else {
+        usage();
+      }
+    }
+    ProgramCache cache = cacheDir == null ? null : new ProgramCache(cacheDir, cacheSize);
+    engine = new Engine(backend, passes, cache);
+    diagnostics = new Diagnostics(maxErrors, format);
+    context = new Context(Output.STDOUT, diagnostics);
+    // Only the tree-walking interpreter is instrumented, and only for the one script run here.
+    if (profiler != null && backend != Engine.Backend.TREE) {
+      usage();
+    }
+    context.profile(profiler);
+    if (serve != null) {
+      if (args.length - i > 0 || profiler != null) {
+        usage();
+      }
+      runServer();
+    } else if (args.length - i > 1 || (args.length - i == 1 && Files.isDirectory(Paths.get(args[i])))) {
+      if (profiler != null) {
+        usage();
+      }
+      runBatch(Arrays.copyOfRange(args, i, args.length));
+    } else if (args.length - i == 1) {
+      runFile(args[i]);
     } else {
       runPrompt();
     }
   }
 
+  private static void usage() {
+    System.out.println(
+        "Usage: jlox [--engine=tree|vm|jit] [--optimize=all|none|<pass>,...] [--stream]"
+            + " [--cache-dir=<dir>] [--cache-size=<bytes>[k|m|g]] [--site-stats]\n"
+            + "            [--max-errors=<n>] [--diagnostics=text|json]"
+            + " [--profile[=<stacks-file>]] [script]\n"
+            + "       jlox [options] [--jobs=<n>] [--output-dir=<dir>] <script|dir>...\n"
+            + "       jlox [options] --serve=<port>|unix:<path> [--server-cache=<n>]"
+            + " [--server-cache-size=<bytes>[k|m|g]]\n"
+            + "--stream runs each statement as soon as it is read; with --engine=jit it is"
+            + " interpreted.");
+    System.exit(64);
+  }
+
+  private static Set<Optimizer.Pass> parsePasses(String names) {
+    if (names.equals("all")) {
+      return EnumSet.allOf(Optimizer.Pass.class);
+    }
+    Set<Optimizer.Pass> passes = EnumSet.noneOf(Optimizer.Pass.class);
+    if (names.equals("none")) {
+      return passes;
+    }
+    for (String name : names.split(",")) {
+      try {
+        passes.add(Optimizer.Pass.valueOf(name.toUpperCase().replace('-', '_')));
+      } catch (IllegalArgumentException e) {
+        usage();
+      }
+    }
+    return passes;
+  }
+
+  private static long parseSize(String size) {
+    long unit = 1;
+    switch (size.isEmpty() ? ' ' : Character.toLowerCase(size.charAt(size.length() - 1))) {
+      case 'k':
+        unit = 1L << 10;
+        break;
+      case 'm':
+        unit = 1L << 20;
+        break;
+      case 'g':
+        unit = 1L << 30;
+        break;
+      default:
+        break;
+    }
+    try {
+      long bytes = Long.parseLong(unit == 1 ? size : size.substring(0, size.length() - 1));
+      if (bytes >= 0) {
+        return bytes * unit;
+      }
+    } catch (NumberFormatException e) {
+      // Fall through to usage.
+    }
+    usage();
+    return 0;
+  }
+
+  private static int parseCount(String count) {
+    try {
+      int n = Integer.parseInt(count);
+      if (n > 0) {
+        return n;
+      }
+    } catch (NumberFormatException e) {
+      // Fall through to usage.
+    }
+    usage();
+    return 0;
+  }
+
+  private static void runBatch(String[] names) throws IOException {
+    List<Path> paths = new ArrayList<>(names.length);
+    for (String name : names) {
+      paths.add(Paths.get(name));
+    }
+    Metrics.start();
+    Batch batch = new Batch(engine, jobs, outputDir, () -> new Diagnostics(maxErrors, format));
+    System.exit(batch.run(Batch.expand(paths)));
+  }
+
+  private static void runServer() throws IOException {
+    SocketAddress address = null;
+    try {
+      address = Server.address(serve);
+    } catch (IllegalArgumentException e) {
+      usage();
+    }
+    Metrics.start();
+    Supplier<Diagnostics> diagnostics = () -> new Diagnostics(maxErrors, format);
+    new Server(engine, serverCache, serverCacheSize, diagnostics).serve(address);
+  }
+
   private static void runFile(String path) throws IOException {
-    run(Files.readString(Paths.get(path), Charset.defaultCharset()));
-    if (hadError) {
+    if (stream) {
+      try (Reader reader =
+          new InputStreamReader(Files.newInputStream(Paths.get(path)), Charset.defaultCharset())) {
+        runStream(reader);
+      }
+    } else {
+      run(Files.readString(Paths.get(path), Charset.defaultCharset()));
+    }
+    Output.STDOUT.flush();
+    reportProfile();
+    if (diagnostics.hadError()) {
       System.exit(65);
     }
-    if (hadRuntimeError) {
+    if (diagnostics.hadRuntimeError()) {
       System.exit(70);
     }
   }
 
-  private static void runPrompt() {
+  private static void runPrompt() throws IOException {
     for (String line : readLines(System.in)) {
       run(line);
-      hadError = false;
-      hadRuntimeError = false;
+      Output.STDOUT.flush();
+      diagnostics.reset();
     }
+    reportProfile();
   }
 
-  private static void run(String source) {
-    Scanner scanner = new Scanner(source);
-    Parser parser = new Parser(scanner.scanTokens());
-    List<Stmt> statements = parser.parse();
-    if (hadError) {
+  /** Prints the profile to stderr and writes its stacks, if profiling. */
+  private static void reportProfile() throws IOException {
+    if (profiler == null) {
       return;
     }
-    interpreter.interpret(statements);
-  }
-
-  static void error(int line, String message) {
-    report(line, "", message);
+    profiler.report(System.err);
+    if (profileStacks != null) {
+      profiler.writeStacks(profileStacks);
+    }
   }
 
-  private static void report(int line, String where, String message) {
-    System.err.println("[line " + line + "] Error" + where + ": " + message);
-    hadError = true;
+  private static void run(String source) {
+    Program program = engine.compile(source, diagnostics);
+    if (program != null) {
+      context.run(program);
+    }
+    reportDiagnostics();
+    // Starting the MBean server costs more than running a small script and would slow it down even
+    // on another thread, so the metrics are only published once the first script has run.
+    Metrics.start();
+    if (program != null && siteStats && program.jit != null) {
+      Output.STDOUT.flush();
+      System.err.println(program.jit.siteStatistics());
+    }
   }
 
-  static void error(Token token, String message) {
-    if (token.type == TokenType.EOF) {
-      report(token.line, " at end", message);
-    } else {
-      report(token.line, " at '" + token.lexeme + "'", message);
+  /**
+   * Runs each top-level statement as soon as it has been parsed, so only one statement of the
+   * input is ever held in memory. Once an error is reported, the rest of the input is still parsed
+   * for syntax errors but no longer run.
+   */
+  private static void runStream(Reader reader) {
+    Parser parser = new Parser(new Scanner(reader, diagnostics).stream(), diagnostics);
+    boolean ran = false;
+    while (parser.hasNext()) {
+      Stmt statement = parser.next();
+      if (!diagnostics.hadError() && !diagnostics.hadRuntimeError()) {
+        Program program = engine.compile(Collections.singletonList(statement), diagnostics);
+        if (program != null) {
+          context.runPart(program);
+          ran = true;
+        }
+      }
+      reportDiagnostics();
+      Metrics.start();
+    }
+    if (ran) {
+      Metrics.INSTANCE.recordScript();
     }
   }
 
-  public static void runtimeError(RuntimeError error) {
-    System.err.println(error.getMessage() + "\n[line " + error.token.line + "]");
-    hadRuntimeError = true;
+  /** Prints the diagnostics reported since the last call to stderr, after any earlier output. */
+  private static void reportDiagnostics() {
+    String messages = diagnostics.drain();
+    if (!messages.isEmpty()) {
+      Output.STDOUT.flush();
+      System.err.print(messages);
+      System.err.flush();
+    }
   }
 }
@@ -0,0 +1,289 @@
+package com.zacharyhirsch.lox;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counts what every scanner, parser and {@link Context} in the JVM does, for {@link
+ * MetricsMXBean}.
+ *
+ * <p>Each phase records once when it finishes rather than per token or node, into {@link
+ * LongAdder}s, which threads update without contending with each other. That keeps the counting
+ * cheap enough to always do; {@link #start} only makes it visible.
+ *
+ * <p>Rates are one-minute exponentially weighted moving averages, like the load average, updated
+ * every {@link #TICK_SECONDS} from the counters' totals by the thread that registered the bean.
+ */
+final class Metrics implements MetricsMXBean {
+
+  static final Metrics INSTANCE = new Metrics();
+
+  /** Buckets are powers of two from 1 µs to 2<sup>23</sup> µs, about eight seconds. */
+  private static final int BUCKETS = 24;
+
+  private static final int TICK_SECONDS = 5;
+
+  /** How much of a rate is left of what it was one tick ago. */
+  private static final double DECAY = Math.exp(-TICK_SECONDS / 60.0);
+
+  private static final AtomicBoolean started = new AtomicBoolean();
+
+  private final LongAdder scriptsRun = new LongAdder();
+  private final LongAdder tokensScanned = new LongAdder();
+  private final LongAdder nodesBuilt = new LongAdder();
+  private final LongAdder statementsExecuted = new LongAdder();
+  private final LongAdder parseErrors = new LongAdder();
+  private final LongAdder runtimeErrors = new LongAdder();
+  private volatile long globalEnvironmentSize = 0;
+  private final LongAccumulator maxGlobalEnvironmentSize = new LongAccumulator(Math::max, 0);
+  private final Histogram scan = new Histogram();
+  private final Histogram parse = new Histogram();
+  private final Histogram execute = new Histogram();
+  private final Rate scriptsRunRate = new Rate(scriptsRun);
+  private final Rate tokensScannedRate = new Rate(tokensScanned);
+  private final Rate nodesBuiltRate = new Rate(nodesBuilt);
+  private final Rate statementsExecutedRate = new Rate(statementsExecuted);
+  private final Rate parseErrorsRate = new Rate(parseErrors);
+  private final Rate runtimeErrorsRate = new Rate(runtimeErrors);
+
+  private Metrics() {}
+
+  /**
+   * Registers the metrics with the platform MBean server, at most once per JVM, and keeps their
+   * rates up to date. Both happen on a daemon thread, so whatever runs next does not wait for the
+   * MBean server to start.
+   */
+  static void start() {
+    if (!started.compareAndSet(false, true)) {
+      return;
+    }
+    Thread thread = new Thread(Metrics::run, "jlox-metrics");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private static void run() {
+    try {
+      ManagementFactory.getPlatformMBeanServer()
+          .registerMBean(INSTANCE, new ObjectName("com.zacharyhirsch.lox:type=Metrics"));
+    } catch (JMException e) {
+      throw new IllegalStateException(e);
+    }
+    try {
+      while (true) {
+        TimeUnit.SECONDS.sleep(TICK_SECONDS);
+        INSTANCE.tick();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void tick() {
+    scriptsRunRate.tick();
+    tokensScannedRate.tick();
+    nodesBuiltRate.tick();
+    statementsExecutedRate.tick();
+    parseErrorsRate.tick();
+    runtimeErrorsRate.tick();
+  }
+
+  void recordScan(long nanos, int tokens) {
+    scan.record(nanos);
+    tokensScanned.add(tokens);
+  }
+
+  void recordParse(long nanos, int nodes, int errors) {
+    parse.record(nanos);
+    nodesBuilt.add(nodes);
+    if (errors > 0) {
+      parseErrors.add(errors);
+    }
+  }
+
+  /** Records one script, however many programs it was run as. */
+  void recordScript() {
+    scriptsRun.increment();
+  }
+
+  void recordExecute(long nanos, int statements, int globals) {
+    execute.record(nanos);
+    statementsExecuted.add(statements);
+    globalEnvironmentSize = globals;
+    maxGlobalEnvironmentSize.accumulate(globals);
+  }
+
+  void recordRuntimeError() {
+    runtimeErrors.increment();
+  }
+
+  @Override
+  public long getScriptsRun() {
+    return scriptsRun.sum();
+  }
+
+  @Override
+  public long getTokensScanned() {
+    return tokensScanned.sum();
+  }
+
+  @Override
+  public long getNodesBuilt() {
+    return nodesBuilt.sum();
+  }
+
+  @Override
+  public long getStatementsExecuted() {
+    return statementsExecuted.sum();
+  }
+
+  @Override
+  public long getParseErrors() {
+    return parseErrors.sum();
+  }
+
+  @Override
+  public long getRuntimeErrors() {
+    return runtimeErrors.sum();
+  }
+
+  @Override
+  public double getScriptsRunPerSecond() {
+    return scriptsRunRate.perSecond();
+  }
+
+  @Override
+  public double getTokensScannedPerSecond() {
+    return tokensScannedRate.perSecond();
+  }
+
+  @Override
+  public double getNodesBuiltPerSecond() {
+    return nodesBuiltRate.perSecond();
+  }
+
+  @Override
+  public double getStatementsExecutedPerSecond() {
+    return statementsExecutedRate.perSecond();
+  }
+
+  @Override
+  public double getParseErrorsPerSecond() {
+    return parseErrorsRate.perSecond();
+  }
+
+  @Override
+  public double getRuntimeErrorsPerSecond() {
+    return runtimeErrorsRate.perSecond();
+  }
+
+  @Override
+  public long getGlobalEnvironmentSize() {
+    return globalEnvironmentSize;
+  }
+
+  @Override
+  public long getMaxGlobalEnvironmentSize() {
+    return maxGlobalEnvironmentSize.get();
+  }
+
+  @Override
+  public long[] getLatencyBucketBoundsMicros() {
+    long[] bounds = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      bounds[i] = 1L << i;
+    }
+    return bounds;
+  }
+
+  @Override
+  public long[] getScanLatencyHistogram() {
+    return scan.counts();
+  }
+
+  @Override
+  public long[] getParseLatencyHistogram() {
+    return parse.counts();
+  }
+
+  @Override
+  public long[] getExecuteLatencyHistogram() {
+    return execute.counts();
+  }
+
+  @Override
+  public double getScanTotalMillis() {
+    return scan.totalMillis();
+  }
+
+  @Override
+  public double getParseTotalMillis() {
+    return parse.totalMillis();
+  }
+
+  @Override
+  public double getExecuteTotalMillis() {
+    return execute.totalMillis();
+  }
+
+  /** How fast a counter has grown over about the last minute. */
+  private static final class Rate {
+
+    private final LongAdder counter;
+    private long last = 0;
+    private volatile double perSecond = 0;
+
+    Rate(LongAdder counter) {
+      this.counter = counter;
+    }
+
+    /** Folds in what the counter grew by since the last tick. Only the ticking thread calls it. */
+    void tick() {
+      long total = counter.sum();
+      double current = (double) (total - last) / TICK_SECONDS;
+      last = total;
+      perSecond = current + DECAY * (perSecond - current);
+    }
+
+    double perSecond() {
+      return perSecond;
+    }
+  }
+
+  /** Latencies counted in power-of-two buckets of microseconds. */
+  private static final class Histogram {
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS + 1];
+    private final LongAdder nanos = new LongAdder();
+
+    Histogram() {
+      for (int i = 0; i < buckets.length; i++) {
+        buckets[i] = new LongAdder();
+      }
+    }
+
+    void record(long nanos) {
+      // A phase under 1 µs goes in bucket 0, one under 2 µs in bucket 1, and so on.
+      int bucket = 64 - Long.numberOfLeadingZeros(Math.max(nanos, 0) / 1000);
+      buckets[Math.min(bucket, BUCKETS)].increment();
+      this.nanos.add(nanos);
+    }
+
+    long[] counts() {
+      long[] counts = new long[buckets.length];
+      for (int i = 0; i < buckets.length; i++) {
+        counts[i] = buckets[i].sum();
+      }
+      return counts;
+    }
+
+    double totalMillis() {
+      return nanos.sum() / 1e6;
+    }
+  }
+}
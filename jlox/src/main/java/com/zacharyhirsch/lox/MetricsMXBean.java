@@ -0,0 +1,65 @@
+package com.zacharyhirsch.lox;
+
+/**
+ * The runtime statistics jlox publishes over JMX as {@code com.zacharyhirsch.lox:type=Metrics}.
+ *
+ * <p>Counters are cumulative since the JVM started and never go down. Each has a rate alongside,
+ * per second, averaged over about the last minute with exponentially decaying weights, as the
+ * load average is; it is updated every few seconds.
+ *
+ * <p>Latency histograms have one bucket per bound in {@link #getLatencyBucketBoundsMicros}, each
+ * counting the phases that took less than its bound and no less than the one before it, and a last
+ * bucket for anything longer.
+ */
+public interface MetricsMXBean {
+
+  /**
+   * Scripts run by any {@link Context}, including those that failed. A streamed script counts once,
+   * however many statements it was run as.
+   */
+  long getScriptsRun();
+
+  long getTokensScanned();
+
+  /** Statements and expressions built by the parser. */
+  long getNodesBuilt();
+
+  /** Top-level statements that ran to completion, on any backend. */
+  long getStatementsExecuted();
+
+  long getParseErrors();
+
+  long getRuntimeErrors();
+
+  double getScriptsRunPerSecond();
+
+  double getTokensScannedPerSecond();
+
+  double getNodesBuiltPerSecond();
+
+  double getStatementsExecutedPerSecond();
+
+  double getParseErrorsPerSecond();
+
+  double getRuntimeErrorsPerSecond();
+
+  /** How many global slots the {@link Environment} of the last program run had. */
+  long getGlobalEnvironmentSize();
+
+  /** The most global slots the {@link Environment} of any program run has had. */
+  long getMaxGlobalEnvironmentSize();
+
+  long[] getLatencyBucketBoundsMicros();
+
+  long[] getScanLatencyHistogram();
+
+  long[] getParseLatencyHistogram();
+
+  long[] getExecuteLatencyHistogram();
+
+  double getScanTotalMillis();
+
+  double getParseTotalMillis();
+
+  double getExecuteTotalMillis();
+}
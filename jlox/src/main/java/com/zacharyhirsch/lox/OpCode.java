@@ -0,0 +1,48 @@
+package com.zacharyhirsch.lox;
+
+/**
+ * Instructions understood by the {@link VM}.
+ *
+ * <p>Each instruction is a single byte, optionally followed by a big-endian 24-bit operand.
+ * Instructions that touch globals take the variable's name from the token recorded for the
+ * instruction in the {@link Chunk}.
+ */
+final class OpCode {
+
+  /** Pushes the constant at the 24-bit operand index. */
+  static final byte CONSTANT = 0;
+
+  static final byte NIL = 1;
+  static final byte TRUE = 2;
+  static final byte FALSE = 3;
+  static final byte POP = 4;
+
+  static final byte DEFINE_GLOBAL = 5;
+  static final byte GET_GLOBAL = 6;
+  static final byte SET_GLOBAL = 7;
+
+  static final byte EQUAL = 8;
+  static final byte NOT_EQUAL = 9;
+  static final byte GREATER = 10;
+  static final byte GREATER_EQUAL = 11;
+  static final byte LESS = 12;
+  static final byte LESS_EQUAL = 13;
+  static final byte ADD = 14;
+  static final byte SUBTRACT = 15;
+  static final byte MULTIPLY = 16;
+  static final byte DIVIDE = 17;
+  static final byte NOT = 18;
+  static final byte NEGATE = 19;
+
+  static final byte PRINT = 20;
+
+  /** Jumps forward by the 24-bit operand. */
+  static final byte JUMP = 21;
+
+  /** Pops the top of the stack and jumps forward by the 24-bit operand if it is falsey. */
+  static final byte JUMP_IF_FALSE = 22;
+
+  static final byte RETURN = 23;
+
+  private OpCode() {}
+}
@@ -0,0 +1,299 @@
+package com.zacharyhirsch.lox;
+
+import static java.lang.invoke.MethodType.methodType;
+
+import java.lang.constant.ConstantDescs;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An {@code invokedynamic} call site for a binary operator whose operand types were not known when
+ * the code was generated.
+ *
+ * <p>The site's name is the operator's {@link TokenType}. Its type takes the two operands, each
+ * either a {@code double} or an {@code Object}, followed by the operator {@link Token} unless the
+ * operator is {@code ==} or {@code !=}, and returns what the {@link Interpreter} would: an {@code
+ * Object} for {@code +}, a {@code double} for other arithmetic and a {@code boolean} for the rest.
+ *
+ * <p>A site starts {@link State#UNINITIALIZED}. Each time no cached entry matches its operands it
+ * picks the implementation for their classes, such as number + number or string + anything, and
+ * puts it in front of its existing entries behind a guard on those classes. Once it has {@link
+ * #MAX_ENTRIES} entries it stops guarding and links the generic implementation for good, so a
+ * monomorphic site is a single type check in front of a call HotSpot can inline.
+ */
+final class OperatorSite extends MutableCallSite {
+
+  /** How far a site has got through caching the operand types it has seen. */
+  enum State {
+    UNINITIALIZED,
+    MONOMORPHIC,
+    POLYMORPHIC,
+    MEGAMORPHIC,
+  }
+
+  static final int MAX_ENTRIES = 4;
+
+  private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+  private static final MethodHandle FALLBACK;
+  private static final MethodHandle IS_INSTANCE;
+  private static final MethodHandle IS_NULL;
+  private static final MethodHandle IS_STRING;
+  private static final MethodHandle UNBOX;
+  private static final Map<TokenType, MethodHandle> NUMBER = new EnumMap<>(TokenType.class);
+  private static final Map<TokenType, MethodHandle> GENERIC = new EnumMap<>(TokenType.class);
+  private static final MethodHandle CONCAT;
+
+  static {
+    try {
+      FALLBACK =
+          LOOKUP.findVirtual(
+              OperatorSite.class, "fallback", methodType(Object.class, Object[].class));
+      IS_INSTANCE =
+          LOOKUP.findVirtual(Class.class, "isInstance", methodType(boolean.class, Object.class));
+      IS_NULL =
+          LOOKUP.findStatic(
+              OperatorSite.class, "isNull", methodType(boolean.class, Object.class));
+      IS_STRING =
+          LOOKUP.findStatic(Rope.class, "isString", methodType(boolean.class, Object.class));
+      UNBOX =
+          LOOKUP.findStatic(OperatorSite.class, "unbox", methodType(double.class, Object.class));
+      CONCAT =
+          LOOKUP.findStatic(
+              OperatorSite.class,
+              "concat",
+              methodType(Object.class, Object.class, Object.class, Token.class));
+      MethodType numbers = methodType(double.class, double.class, double.class);
+      MethodType compare = methodType(boolean.class, double.class, double.class);
+      MethodType generic = methodType(double.class, Object.class, Object.class, Token.class);
+      MethodType genericCompare = generic.changeReturnType(boolean.class);
+      NUMBER.put(TokenType.PLUS, LOOKUP.findStatic(OperatorSite.class, "add", numbers));
+      NUMBER.put(TokenType.MINUS, LOOKUP.findStatic(OperatorSite.class, "subtract", numbers));
+      NUMBER.put(TokenType.STAR, LOOKUP.findStatic(OperatorSite.class, "multiply", numbers));
+      NUMBER.put(
+          TokenType.SLASH,
+          LOOKUP.findStatic(JitRuntime.class, "divide", numbers.appendParameterTypes(Token.class)));
+      NUMBER.put(TokenType.GREATER, LOOKUP.findStatic(JitRuntime.class, "greater", compare));
+      NUMBER.put(
+          TokenType.GREATER_EQUAL, LOOKUP.findStatic(JitRuntime.class, "greaterEqual", compare));
+      NUMBER.put(TokenType.LESS, LOOKUP.findStatic(JitRuntime.class, "less", compare));
+      NUMBER.put(TokenType.LESS_EQUAL, LOOKUP.findStatic(JitRuntime.class, "lessEqual", compare));
+      NUMBER.put(TokenType.EQUAL_EQUAL, LOOKUP.findStatic(JitRuntime.class, "equal", compare));
+      NUMBER.put(TokenType.BANG_EQUAL, LOOKUP.findStatic(OperatorSite.class, "notEqual", compare));
+      GENERIC.put(
+          TokenType.PLUS,
+          LOOKUP.findStatic(JitRuntime.class, "add", generic.changeReturnType(Object.class)));
+      GENERIC.put(TokenType.MINUS, LOOKUP.findStatic(JitRuntime.class, "subtract", generic));
+      GENERIC.put(TokenType.STAR, LOOKUP.findStatic(JitRuntime.class, "multiply", generic));
+      GENERIC.put(TokenType.SLASH, LOOKUP.findStatic(JitRuntime.class, "divide", generic));
+      GENERIC.put(
+          TokenType.GREATER, LOOKUP.findStatic(JitRuntime.class, "greater", genericCompare));
+      GENERIC.put(
+          TokenType.GREATER_EQUAL,
+          LOOKUP.findStatic(JitRuntime.class, "greaterEqual", genericCompare));
+      GENERIC.put(TokenType.LESS, LOOKUP.findStatic(JitRuntime.class, "less", genericCompare));
+      GENERIC.put(
+          TokenType.LESS_EQUAL, LOOKUP.findStatic(JitRuntime.class, "lessEqual", genericCompare));
+      MethodType equality = methodType(boolean.class, Object.class, Object.class);
+      GENERIC.put(
+          TokenType.EQUAL_EQUAL, LOOKUP.findStatic(Interpreter.class, "isEqual", equality));
+      GENERIC.put(
+          TokenType.BANG_EQUAL, LOOKUP.findStatic(OperatorSite.class, "notEqual", equality));
+    } catch (ReflectiveOperationException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  private final TokenType operator;
+  private State state = State.UNINITIALIZED;
+  private int entries = 0;
+  private int misses = 0;
+
+  private OperatorSite(TokenType operator, MethodType type) {
+    super(type);
+    this.operator = operator;
+    setTarget(
+        FALLBACK.bindTo(this).asCollector(Object[].class, type.parameterCount()).asType(type));
+  }
+
+  /**
+   * The bootstrap method for operator sites. If the calling class was defined with a {@link
+   * Statistics} as its class data, the site is added to it.
+   */
+  static CallSite bootstrap(MethodHandles.Lookup lookup, String name, MethodType type)
+      throws IllegalAccessException {
+    OperatorSite site = new OperatorSite(TokenType.valueOf(name), type);
+    Statistics statistics =
+        MethodHandles.classData(lookup, ConstantDescs.DEFAULT_NAME, Statistics.class);
+    if (statistics != null) {
+      statistics.add(site);
+    }
+    return site;
+  }
+
+  private Object fallback(Object[] arguments) throws Throwable {
+    MethodHandle target;
+    synchronized (this) {
+      misses++;
+      if (entries == MAX_ENTRIES) {
+        state = State.MEGAMORPHIC;
+        target = GENERIC.get(operator).asType(type());
+        setTarget(target);
+      } else {
+        target = specialize(arguments);
+        MethodHandle guard = guard(arguments);
+        setTarget(guard == null ? target : MethodHandles.guardWithTest(guard, target, getTarget()));
+        entries++;
+        state = entries == 1 ? State.MONOMORPHIC : State.POLYMORPHIC;
+      }
+    }
+    return target.invokeWithArguments(arguments);
+  }
+
+  /** Returns the implementation for operands of the classes in {@code arguments}. */
+  private MethodHandle specialize(Object[] arguments) {
+    MethodType type = type();
+    MethodHandle handle;
+    if (arguments[0] instanceof Double && arguments[1] instanceof Double) {
+      handle = NUMBER.get(operator);
+      for (int i = 0; i < 2; i++) {
+        if (!type.parameterType(i).isPrimitive()) {
+          handle = MethodHandles.filterArguments(handle, i, UNBOX);
+        }
+      }
+      if (handle.type().parameterCount() < type.parameterCount()) {
+        handle = MethodHandles.dropArguments(handle, 2, Token.class);
+      }
+    } else if (operator == TokenType.PLUS
+        && (Rope.isString(arguments[0]) || Rope.isString(arguments[1]))) {
+      handle = CONCAT;
+    } else {
+      handle = GENERIC.get(operator);
+    }
+    return handle.asType(type);
+  }
+
+  /**
+   * Returns a test that the operands have the same classes as {@code arguments}, or null if they
+   * always will. String concatenation only depends on which side is a string, flat or a {@link
+   * Rope}.
+   */
+  private MethodHandle guard(Object[] arguments) {
+    MethodType type = type().changeReturnType(boolean.class);
+    boolean concat =
+        operator == TokenType.PLUS
+            && !(arguments[0] instanceof Double && arguments[1] instanceof Double)
+            && (Rope.isString(arguments[0]) || Rope.isString(arguments[1]));
+    MethodHandle guard = null;
+    for (int i = 0; i < 2; i++) {
+      if (type.parameterType(i).isPrimitive()) {
+        continue;
+      }
+      if (concat && !Rope.isString(arguments[i])) {
+        continue;
+      }
+      MethodHandle test;
+      if (concat) {
+        test = IS_STRING;
+      } else if (arguments[i] == null) {
+        test = IS_NULL;
+      } else {
+        test = IS_INSTANCE.bindTo(arguments[i].getClass());
+      }
+      test = MethodHandles.permuteArguments(test, type, i);
+      if (guard != null) {
+        MethodHandle fail =
+            MethodHandles.dropArguments(
+                MethodHandles.constant(boolean.class, false), 0, type.parameterList());
+        test = MethodHandles.guardWithTest(guard, test, fail);
+      }
+      guard = test;
+      if (concat) {
+        break;
+      }
+    }
+    return guard;
+  }
+
+  synchronized State state() {
+    return state;
+  }
+
+  synchronized int misses() {
+    return misses;
+  }
+
+  private static boolean isNull(Object value) {
+    return value == null;
+  }
+
+  private static double unbox(Object value) {
+    return (Double) value;
+  }
+
+  private static double add(double left, double right) {
+    return left + right;
+  }
+
+  private static double subtract(double left, double right) {
+    return left - right;
+  }
+
+  private static double multiply(double left, double right) {
+    return left * right;
+  }
+
+  private static boolean notEqual(double left, double right) {
+    return !JitRuntime.equal(left, right);
+  }
+
+  private static boolean notEqual(Object left, Object right) {
+    return !Interpreter.isEqual(left, right);
+  }
+
+  private static Object concat(Object left, Object right, Token operator) {
+    return Rope.concat(left, right);
+  }
+
+  /** The operator sites linked by one compiled program, for reporting how well they cached. */
+  static final class Statistics {
+
+    private final List<OperatorSite> sites = new ArrayList<>();
+
+    synchronized void add(OperatorSite site) {
+      sites.add(site);
+    }
+
+    @Override
+    public synchronized String toString() {
+      Map<State, Integer> counts = new EnumMap<>(State.class);
+      Map<TokenType, Integer> megamorphic = new EnumMap<>(TokenType.class);
+      int misses = 0;
+      for (OperatorSite site : sites) {
+        State state = site.state();
+        counts.merge(state, 1, Integer::sum);
+        if (state == State.MEGAMORPHIC) {
+          megamorphic.merge(site.operator, 1, Integer::sum);
+        }
+        misses += site.misses();
+      }
+      StringBuilder text = new StringBuilder();
+      text.append(sites.size()).append(" operator sites linked");
+      for (State state : State.values()) {
+        text.append(", ").append(counts.getOrDefault(state, 0)).append(' ');
+        text.append(state.name().toLowerCase());
+      }
+      text.append("; ").append(misses).append(" cache misses");
+      if (!megamorphic.isEmpty()) {
+        text.append("; megamorphic by operator: ").append(megamorphic);
+      }
+      return text.toString();
+    }
+  }
+}
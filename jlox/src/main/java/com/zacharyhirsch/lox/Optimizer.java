@@ -0,0 +1,210 @@
+package com.zacharyhirsch.lox;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Rewrites a parsed program into a cheaper but equivalent one before it is resolved and run.
+ *
+ * <p>Any rewrite that would change a runtime error is skipped, so the erroring node survives with
+ * its original token and reports the same message on the same line.
+ *
+ * <p>Expressions are rewritten bottom-up with an {@link ExprStack} rather than by recursion. Each
+ * node is visited once its operands have been, and its visit method takes their rewritten forms off
+ * {@link #results}, so any expression the parser accepts can be optimized.
+ */
+final class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+
+  enum Pass {
+    /** Evaluates operators whose operands are all literals. */
+    FOLD_CONSTANTS,
+    /** Replaces groupings with the expression they contain. */
+    STRIP_GROUPINGS,
+    /** Replaces ternaries that have a literal predicate with the branch it selects. */
+    FOLD_TERNARIES,
+    /** Drops the left operand of a comma when evaluating it can have no effect. */
+    SIMPLIFY_COMMAS,
+  }
+
+  private final Set<Pass> passes = EnumSet.noneOf(Pass.class);
+  private final Interpreter folder = new Interpreter();
+  private final ExprStack stack = new ExprStack();
+  private final List<Expr> results = new ArrayList<>();
+
+  Optimizer(Set<Pass> passes) {
+    this.passes.addAll(passes);
+  }
+
+  List<Stmt> optimize(List<Stmt> statements) {
+    if (passes.isEmpty()) {
+      return statements;
+    }
+    List<Stmt> optimized = new ArrayList<>(statements.size());
+    for (Stmt statement : statements) {
+      optimized.add(statement.accept(this));
+    }
+    return optimized;
+  }
+
+  @Override
+  public Expr visitAssignExpr(Expr.Assign expr) {
+    Expr value = result();
+    if (value == expr.value) {
+      return expr;
+    }
+    return new Expr.Assign(expr.name, value);
+  }
+
+  @Override
+  public Expr visitBinaryExpr(Expr.Binary expr) {
+    Expr right = result();
+    Expr left = result();
+    if (expr.operator.type == TokenType.COMMA) {
+      if (passes.contains(Pass.SIMPLIFY_COMMAS) && isConstant(left)) {
+        return right;
+      }
+    } else if (passes.contains(Pass.FOLD_CONSTANTS) && isConstant(left) && isConstant(right)) {
+      return fold(new Expr.Binary(constant(left), expr.operator, constant(right)));
+    }
+    if (left == expr.left && right == expr.right) {
+      return expr;
+    }
+    return new Expr.Binary(left, expr.operator, right);
+  }
+
+  @Override
+  public Expr visitGroupingExpr(Expr.Grouping expr) {
+    Expr expression = result();
+    if (passes.contains(Pass.STRIP_GROUPINGS)) {
+      return expression;
+    }
+    if (expression == expr.expression) {
+      return expr;
+    }
+    return new Expr.Grouping(expression);
+  }
+
+  @Override
+  public Expr visitLiteralExpr(Expr.Literal expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitUnaryExpr(Expr.Unary expr) {
+    Expr right = result();
+    if (passes.contains(Pass.FOLD_CONSTANTS) && isConstant(right)) {
+      return fold(new Expr.Unary(expr.operator, constant(right)));
+    }
+    if (right == expr.right) {
+      return expr;
+    }
+    return new Expr.Unary(expr.operator, right);
+  }
+
+  @Override
+  public Expr visitTernaryExpr(Expr.Ternary expr) {
+    Expr f = result();
+    Expr t = result();
+    Expr predicate = result();
+    if (passes.contains(Pass.FOLD_TERNARIES) && isConstant(predicate)) {
+      return Interpreter.isTruthy(constant(predicate).value) ? t : f;
+    }
+    if (predicate == expr.predicate && t == expr.t && f == expr.f) {
+      return expr;
+    }
+    return new Expr.Ternary(predicate, t, f);
+  }
+
+  @Override
+  public Expr visitVariableExpr(Expr.Variable expr) {
+    return expr;
+  }
+
+  @Override
+  public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+    Expr expression = optimize(stmt.expression);
+    if (expression == stmt.expression) {
+      return stmt;
+    }
+    return new Stmt.Expression(expression);
+  }
+
+  @Override
+  public Stmt visitPrintStmt(Stmt.Print stmt) {
+    Expr expression = optimize(stmt.expression);
+    if (expression == stmt.expression) {
+      return stmt;
+    }
+    return new Stmt.Print(expression);
+  }
+
+  @Override
+  public Stmt visitVarStmt(Stmt.Var stmt) {
+    if (stmt.initializer == null) {
+      return stmt;
+    }
+    Expr initializer = optimize(stmt.initializer);
+    if (initializer == stmt.initializer) {
+      return stmt;
+    }
+    return new Stmt.Var(stmt.name, initializer);
+  }
+
+  private Expr optimize(Expr expr) {
+    stack.push(expr);
+    while (!stack.isEmpty()) {
+      Expr operand = ExprStack.operand(stack.peek(), stack.next());
+      if (operand != null) {
+        stack.push(operand);
+      } else {
+        results.add(stack.pop().accept(this));
+      }
+    }
+    return result();
+  }
+
+  /** Takes the rewritten form of the last operand visited. */
+  private Expr result() {
+    return results.remove(results.size() - 1);
+  }
+
+  /**
+   * Evaluates {@code expr} now, or leaves it for runtime if doing so raises an error. Strings are
+   * flattened and interned like the ones the scanner makes, but only up to {@link
+   * Rope#MIN_LENGTH}: past that a chain of concatenations is left to build a {@link Rope} at
+   * runtime, as flattening every prefix of the chain here would take quadratic time. Its operands
+   * must be literals, so that evaluating it does not recurse.
+   */
+  private Expr fold(Expr expr) {
+    try {
+      Object value = folder.evaluate(expr);
+      if (Rope.isString(value)) {
+        if (((CharSequence) value).length() > Rope.MIN_LENGTH) {
+          return expr;
+        }
+        value = value.toString().intern();
+      }
+      return new Expr.Literal(value);
+    } catch (RuntimeError error) {
+      return expr;
+    }
+  }
+
+  /** Whether {@code expr} is a literal, possibly inside groupings that were not stripped. */
+  private static boolean isConstant(Expr expr) {
+    while (expr instanceof Expr.Grouping) {
+      expr = ((Expr.Grouping) expr).expression;
+    }
+    return expr instanceof Expr.Literal;
+  }
+
+  /** Returns the literal inside an expression that {@link #isConstant} says is constant. */
+  private static Expr.Literal constant(Expr expr) {
+    while (expr instanceof Expr.Grouping) {
+      expr = ((Expr.Grouping) expr).expression;
+    }
+    return (Expr.Literal) expr;
+  }
+}
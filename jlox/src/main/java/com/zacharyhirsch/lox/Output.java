@@ -0,0 +1,132 @@
+package com.zacharyhirsch.lox;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Where {@code print} statements write to.
+ *
+ * <p>Lines are encoded straight into a reusable buffer that is written out when it fills up and
+ * whenever {@link #flush} is called. Like {@link java.io.PrintStream}, output errors are swallowed
+ * rather than thrown, and everything after the first one is dropped.
+ */
+final class Output {
+
+  static final Output STDOUT = new Output(new FileOutputStream(FileDescriptor.out));
+
+  private static final int BUFFER_SIZE = 1 << 16;
+  private static final byte[] NEWLINE = System.lineSeparator().getBytes(Charset.defaultCharset());
+
+  /** Integral numbers smaller than this print without an exponent, so are formatted directly. */
+  private static final double MAX_PLAIN_INTEGER = 1e7;
+
+  private final OutputStream out;
+  private final Charset charset = Charset.defaultCharset();
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  private int count = 0;
+  private boolean failed = false;
+
+  Output(OutputStream out) {
+    this.out = out;
+  }
+
+  /** Prints a Lox value the way {@link Interpreter#stringify} would format it, then a newline. */
+  void printValue(Object value) {
+    if (value instanceof Double) {
+      printNumber((double) value);
+      return;
+    }
+    write(Interpreter.stringify(value));
+    write(NEWLINE);
+  }
+
+  void printNumber(double number) {
+    if (number == (long) number && Math.abs(number) < MAX_PLAIN_INTEGER) {
+      if (number == 0 && Double.doubleToRawLongBits(number) != 0) {
+        write("-0");
+      } else {
+        writeLong((long) number);
+      }
+    } else {
+      write(Interpreter.stringify(number));
+    }
+    write(NEWLINE);
+  }
+
+  void flush() {
+    if (count > 0 && !failed) {
+      try {
+        out.write(buffer, 0, count);
+        out.flush();
+      } catch (IOException e) {
+        failed = true;
+      }
+    }
+    count = 0;
+  }
+
+  private void write(String text) {
+    int length = text.length();
+    if (length > buffer.length - count) {
+      flush();
+      if (length > buffer.length) {
+        write(text.getBytes(charset));
+        return;
+      }
+    }
+    for (int i = 0; i < length; i++) {
+      char c = text.charAt(i);
+      if (c >= 0x80) {
+        write(text.substring(i).getBytes(charset));
+        return;
+      }
+      buffer[count++] = (byte) c;
+    }
+  }
+
+  private void write(byte[] bytes) {
+    if (bytes.length > buffer.length - count) {
+      flush();
+      if (bytes.length > buffer.length) {
+        try {
+          if (!failed) {
+            out.write(bytes);
+          }
+        } catch (IOException e) {
+          failed = true;
+        }
+        return;
+      }
+    }
+    System.arraycopy(bytes, 0, buffer, count, bytes.length);
+    count += bytes.length;
+  }
+
+  private void writeLong(long value) {
+    if (buffer.length - count < 20) {
+      flush();
+    }
+    if (value < 0) {
+      buffer[count++] = '-';
+      value = -value;
+    }
+    int end = count + digits(value);
+    for (int i = end - 1; i >= count; i--) {
+      buffer[i] = (byte) ('0' + value % 10);
+      value /= 10;
+    }
+    count = end;
+  }
+
+  private static int digits(long value) {
+    int digits = 1;
+    while (value >= 10) {
+      value /= 10;
+      digits++;
+    }
+    return digits;
+  }
+}
@@ -0,0 +1,167 @@
+package com.zacharyhirsch.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The tokens of a source string, stored as parallel primitive arrays of type, start offset, length,
+ * line and, for identifiers, symbol in the scanner's {@link Symbols}.
+ *
+ * <p>Lexemes and literal values are only cut out of the source when someone asks for them, so a
+ * token the parser merely checks the type of costs no allocation at all.
+ *
+ * <p>Indexes and offsets are absolute. When the tokens are streamed from a {@link Scanner}, they
+ * are scanned as they are asked for, and the parser can {@link #discardBefore discard} the ones it
+ * is done with so that neither they nor their source text stay in memory.
+ */
+final class PackedTokens {
+
+  private static final TokenType[] TYPES = TokenType.values();
+
+  private String source;
+  private final Symbols names;
+  private int sourceOffset = 0;
+  private Scanner scanner = null;
+
+  /** The lexeme of each token type that is always spelled the same way, once it has been seen. */
+  private final String[] spellings = new String[TYPES.length];
+
+  private byte[] types;
+  private int[] starts;
+  private int[] lengths;
+  private int[] lines;
+  private int[] symbols;
+  private int count = 0;
+  private int base = 0;
+
+  PackedTokens(String source, Symbols names) {
+    this.source = source;
+    this.names = names;
+    int capacity = Math.max(16, source.length() / 4);
+    this.types = new byte[capacity];
+    this.starts = new int[capacity];
+    this.lengths = new int[capacity];
+    this.lines = new int[capacity];
+    this.symbols = new int[capacity];
+  }
+
+  void add(TokenType type, int start, int length, int line) {
+    add(type, start, length, line, Token.NO_SYMBOL);
+  }
+
+  void add(TokenType type, int start, int length, int line, int symbol) {
+    if (count == types.length) {
+      int capacity = count * 2;
+      types = Arrays.copyOf(types, capacity);
+      starts = Arrays.copyOf(starts, capacity);
+      lengths = Arrays.copyOf(lengths, capacity);
+      lines = Arrays.copyOf(lines, capacity);
+      symbols = Arrays.copyOf(symbols, capacity);
+    }
+    types[count] = (byte) type.ordinal();
+    starts[count] = start;
+    lengths[count] = length;
+    lines[count] = line;
+    symbols[count] = symbol;
+    count++;
+  }
+
+  /** Makes the tokens scan themselves from {@code scanner} as they are asked for. */
+  void streamFrom(Scanner scanner) {
+    this.scanner = scanner;
+  }
+
+  /** Points lexemes at a new window of the source that starts at absolute offset {@code offset}. */
+  void setSource(String source, int offset) {
+    this.source = source;
+    this.sourceOffset = offset;
+  }
+
+  /** Forgets every token before {@code index}. */
+  void discardBefore(int index) {
+    int drop = index - base;
+    if (drop <= 0) {
+      return;
+    }
+    count -= drop;
+    System.arraycopy(types, drop, types, 0, count);
+    System.arraycopy(starts, drop, starts, 0, count);
+    System.arraycopy(lengths, drop, lengths, 0, count);
+    System.arraycopy(lines, drop, lines, 0, count);
+    System.arraycopy(symbols, drop, symbols, 0, count);
+    base = index;
+  }
+
+  /** The source offset of the oldest token still held, or {@code Integer.MAX_VALUE} if none. */
+  int firstStart() {
+    return count == 0 ? Integer.MAX_VALUE : starts[0];
+  }
+
+  int size() {
+    return base + count;
+  }
+
+  TokenType type(int index) {
+    if (index - base >= count) {
+      fill(index);
+    }
+    return TYPES[types[index - base]];
+  }
+
+  int line(int index) {
+    return lines[index - base];
+  }
+
+  String lexeme(int index) {
+    TokenType type = type(index);
+    if (type == TokenType.IDENTIFIER) {
+      return names.name(symbols[index - base]);
+    }
+    if (type == TokenType.STRING || type == TokenType.NUMBER) {
+      return text(index, 0, 0);
+    }
+    String spelling = spellings[type.ordinal()];
+    if (spelling == null) {
+      spelling = text(index, 0, 0);
+      spellings[type.ordinal()] = spelling;
+    }
+    return spelling;
+  }
+
+  /** Returns the value of a number or string token, or null for any other token. */
+  Object literal(int index) {
+    switch (type(index)) {
+      case NUMBER:
+        return Double.parseDouble(lexeme(index));
+      case STRING:
+        // Interned so that comparing equal literals is only a reference check.
+        return text(index, 1, 1).intern();
+      default:
+        return null;
+    }
+  }
+
+  Token token(int index) {
+    return new Token(
+        type(index), lexeme(index), literal(index), line(index), symbols[index - base]);
+  }
+
+  List<Token> toList() {
+    List<Token> tokens = new ArrayList<>(count);
+    for (int i = base; i < base + count; i++) {
+      tokens.add(token(i));
+    }
+    return tokens;
+  }
+
+  /** Returns the source text of a token, less {@code trimStart} and {@code trimEnd} characters. */
+  private String text(int index, int trimStart, int trimEnd) {
+    int start = starts[index - base] - sourceOffset;
+    return source.substring(start + trimStart, start + lengths[index - base] - trimEnd);
+  }
+
+  private void fill(int index) {
+    while (index - base >= count && scanner != null && scanner.scanStreamed()) {}
+  }
+}
@@ -29,28 +29,169 @@ import static com.zacharyhirsch.lox.TokenType.TRUE;
 import static com.zacharyhirsch.lox.TokenType.VAR;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+/**
+ * Parses tokens into statements by recursive descent, and expressions by precedence climbing.
+ *
+ * <p>Expressions are driven by tables indexed by {@link TokenType}: the kind of expression a token
+ * starts, and for operators, how tightly they bind and how their right-hand side is parsed. Each
+ * level of precedence is one comparison in a loop rather than a method call, so a primary
+ * expression no longer goes through a call for every level.
+ *
+ * <p>Parsing an expression does not recurse either. An operator or grouping whose operand is still
+ * to come is pushed onto a stack of {@link Pending pending} expressions, and built once its operand
+ * is complete, so how deeply expressions nest is limited by the heap rather than the thread's
+ * stack.
+ */
 final class Parser {
 
   private static final class ParseError extends RuntimeException {}
 
-  private final List<Token> tokens;
+  /** How tightly operators bind, loosest first. */
+  private enum Precedence {
+    NONE,
+    ASSIGNMENT,
+    COMMA,
+    TERNARY,
+    EQUALITY,
+    COMPARISON,
+    TERM,
+    FACTOR,
+    UNARY,
+  }
+
+  /** The kinds of expression a token can start. */
+  private enum Prefix {
+    LITERAL,
+    VARIABLE,
+    GROUPING,
+    UNARY,
+  }
+
+  /** How the right-hand side of an operator is parsed. */
+  private enum Infix {
+    /** A left-associative operator, whose right operand binds more tightly than it does. */
+    BINARY,
+    /** A ternary, whose branches are each a whole expression. */
+    TERNARY,
+    /** An assignment, which is right-associative. */
+    ASSIGNMENT,
+  }
+
+  /** An expression waiting for the operand being parsed before it can be built. */
+  private enum Pending {
+    GROUPING,
+    UNARY,
+    BINARY,
+    /** A ternary waiting for its first branch. */
+    TERNARY_THEN,
+    /** A ternary waiting for its second branch. */
+    TERNARY_ELSE,
+    ASSIGNMENT,
+  }
+
+  private static final Prefix[] PREFIX = new Prefix[TokenType.values().length];
+  private static final Infix[] INFIX = new Infix[TokenType.values().length];
+
+  /** The ordinal of each operator's {@link Precedence}, or of {@link Precedence#NONE}. */
+  private static final int[] BINDING = new int[TokenType.values().length];
+
+  static {
+    prefix(Prefix.LITERAL, FALSE, TRUE, NIL, NUMBER, STRING);
+    prefix(Prefix.VARIABLE, IDENTIFIER);
+    prefix(Prefix.GROUPING, LEFT_PAREN);
+    prefix(Prefix.UNARY, BANG, MINUS);
+    infix(Precedence.ASSIGNMENT, Infix.ASSIGNMENT, EQUAL);
+    infix(Precedence.COMMA, Infix.BINARY, COMMA);
+    infix(Precedence.TERNARY, Infix.TERNARY, QUESTION);
+    infix(Precedence.EQUALITY, Infix.BINARY, BANG_EQUAL, EQUAL_EQUAL);
+    infix(Precedence.COMPARISON, Infix.BINARY, GREATER, GREATER_EQUAL, LESS, LESS_EQUAL);
+    infix(Precedence.TERM, Infix.BINARY, MINUS, PLUS);
+    infix(Precedence.FACTOR, Infix.BINARY, SLASH, STAR);
+  }
+
+  private static void prefix(Prefix prefix, TokenType... types) {
+    for (TokenType type : types) {
+      PREFIX[type.ordinal()] = prefix;
+    }
+  }
+
+  private static void infix(Precedence precedence, Infix infix, TokenType... types) {
+    for (TokenType type : types) {
+      INFIX[type.ordinal()] = infix;
+      BINDING[type.ordinal()] = precedence.ordinal();
+    }
+  }
+
+  private final PackedTokens tokens;
+  private final Diagnostics diagnostics;
   private int current;
+  private int errors = 0;
+  private int nodes = 0;
+  private long streamNanos = 0;
+
+  // The pending expressions, innermost last: what each one is, the precedence being parsed when
+  // it was pushed, its operator, and the operands it already has.
+  private Pending[] pending = new Pending[16];
+  private int[] precedences = new int[16];
+  private Token[] operators = new Token[16];
+  private Expr[] firsts = new Expr[16];
+  private Expr[] seconds = new Expr[16];
+  private int depth = 0;
 
-  Parser(List<Token> tokens) {
+  Parser(PackedTokens tokens, Diagnostics diagnostics) {
     this.tokens = tokens;
+    this.diagnostics = diagnostics;
     this.current = 0;
   }
 
   List<Stmt> parse() {
+    Events.Parse event = null;
+    if (Events.enabled()) {
+      event = new Events.Parse();
+      event.begin();
+    }
+    long start = System.nanoTime();
     List<Stmt> statements = new ArrayList<>();
     while (!isAtEnd()) {
       statements.add(declaration());
     }
+    Metrics.INSTANCE.recordParse(System.nanoTime() - start, nodes, errors);
+    if (event != null) {
+      event.end();
+      if (event.shouldCommit()) {
+        event.statements = statements.size();
+        event.errors = errors;
+        event.commit();
+      }
+    }
     return statements;
   }
 
+  boolean hasNext() {
+    return !isAtEnd();
+  }
+
+  /**
+   * Parses the next top-level declaration, or returns null if it has a syntax error. The tokens
+   * before it are discarded, so a streamed program is only held one declaration at a time.
+   *
+   * <p>The whole parse is recorded once the last declaration has been parsed. Its time includes
+   * scanning the tokens, which happens as the parser asks for them.
+   */
+  Stmt next() {
+    long start = System.nanoTime();
+    Stmt statement = declaration();
+    tokens.discardBefore(current - 1);
+    streamNanos += System.nanoTime() - start;
+    if (isAtEnd()) {
+      Metrics.INSTANCE.recordParse(streamNanos, nodes, errors);
+    }
+    return statement;
+  }
+
   private Stmt declaration() {
     try {
       if (match(VAR)) {
@@ -64,17 +205,14 @@ final class Parser {
   }
 
   private Stmt varDeclaration() {
-    Token name = consume(IDENTIFIER, "Expect variable name.");
+    consume(IDENTIFIER, "Expect variable name.");
+    Token name = previous();
     Expr initializer = null;
     if (match(EQUAL)) {
       initializer = expression();
     }
     consume(SEMICOLON, "Expect ';' after variable declaration.");
-    return new Stmt.Var(name, initializer);
-  }
-
-  private Expr expression() {
-    return assignment();
+    return node(new Stmt.Var(name, initializer));
   }
 
   private Stmt statement() {
@@ -87,142 +225,183 @@ final class Parser {
   private Stmt printStatement() {
     Expr value = expression();
     consume(SEMICOLON, "Expected ';' after value.");
-    return new Stmt.Print(value);
+    return node(new Stmt.Print(value));
   }
 
   private Stmt expressionStatement() {
     Expr expr = expression();
     consume(SEMICOLON, "Expected ';' after expression.");
-    return new Stmt.Expression(expr);
+    return node(new Stmt.Expression(expr));
   }
 
-  private Expr assignment() {
-    Expr expr = compound();
-    if (match(EQUAL)) {
-      Token equals = previous();
-      Expr value = assignment();
-      if (expr instanceof Expr.Variable) {
-        Token name = ((Expr.Variable)expr).name;
-        return new Expr.Assign(name, value);
+  /**
+   * Parses an expression: the operand a token starts, then operators for as long as the next token
+   * is one that binds at least as tightly as the precedence being parsed. Each operator is pushed
+   * while its right operand is parsed at its own precedence, and popped to resume the one it
+   * interrupted.
+   */
+  private Expr expression() {
+    int precedence = Precedence.ASSIGNMENT.ordinal();
+    depth = 0;
+    operand:
+    while (true) {
+      Prefix prefix = PREFIX[peekType().ordinal()];
+      if (prefix == null) {
+        throw error(peek(), "Expect expression.");
+      }
+      advance();
+      Expr expr;
+      switch (prefix) {
+        case GROUPING:
+          push(Pending.GROUPING, precedence, null, null, null);
+          precedence = Precedence.ASSIGNMENT.ordinal();
+          continue operand;
+        case UNARY:
+          push(Pending.UNARY, precedence, previous(), null, null);
+          precedence = Precedence.UNARY.ordinal();
+          continue operand;
+        case VARIABLE:
+          expr = node(new Expr.Variable(previous()));
+          break;
+        default:
+          expr = literal();
+          break;
+      }
+      while (true) {
+        int binding = BINDING[peekType().ordinal()];
+        if (binding >= precedence) {
+          Infix infix = INFIX[peekType().ordinal()];
+          advance();
+          switch (infix) {
+            case BINARY:
+              push(Pending.BINARY, precedence, previous(), expr, null);
+              precedence = binding + 1;
+              break;
+            case TERNARY:
+              push(Pending.TERNARY_THEN, precedence, null, expr, null);
+              precedence = Precedence.ASSIGNMENT.ordinal();
+              break;
+            case ASSIGNMENT:
+              push(Pending.ASSIGNMENT, precedence, previous(), expr, null);
+              precedence = Precedence.ASSIGNMENT.ordinal();
+              break;
+          }
+          continue operand;
+        }
+        if (depth == 0) {
+          return expr;
+        }
+        // The operand is complete, so build the expression that was waiting for it.
+        depth--;
+        precedence = precedences[depth];
+        Token operator = operators[depth];
+        Expr first = firsts[depth];
+        Expr second = seconds[depth];
+        operators[depth] = null;
+        firsts[depth] = null;
+        seconds[depth] = null;
+        switch (pending[depth]) {
+          case GROUPING:
+            consume(RIGHT_PAREN, "Expect ')' after expression.");
+            expr = node(new Expr.Grouping(expr));
+            break;
+          case UNARY:
+            expr = node(new Expr.Unary(operator, expr));
+            break;
+          case BINARY:
+            expr = node(new Expr.Binary(first, operator, expr));
+            break;
+          case TERNARY_THEN:
+            consume(COLON, "Expect ':' after expression.");
+            push(Pending.TERNARY_ELSE, precedence, null, first, expr);
+            precedence = Precedence.ASSIGNMENT.ordinal();
+            continue operand;
+          case TERNARY_ELSE:
+            expr = node(new Expr.Ternary(first, second, expr));
+            break;
+          case ASSIGNMENT:
+            expr = assignment(first, operator, expr);
+            break;
+        }
       }
-      error(equals, "Invalid assignment target.");
-    }
-    return expr;
-  }
-
-  private Expr compound() {
-    Expr expr = ternary();
-    while (match(COMMA)) {
-      Token operator = previous();
-      Expr right = ternary();
-      expr = new Expr.Binary(expr, operator, right);
-    }
-    return expr;
-  }
-
-  private Expr ternary() {
-    Expr expr = equality();
-    if (match(QUESTION)) {
-      Expr t = expression();
-      consume(COLON, "Expect ':' after expression.");
-      Expr f = expression();
-      expr = new Expr.Ternary(expr, t, f);
-    }
-    return expr;
-  }
-
-  private Expr equality() {
-    Expr expr = comparison();
-    while (match(BANG_EQUAL, EQUAL_EQUAL)) {
-      Token operator = previous();
-      Expr right = comparison();
-      expr = new Expr.Binary(expr, operator, right);
-    }
-    return expr;
-  }
-
-  private Expr comparison() {
-    Expr expr = addition();
-    while (match(GREATER, GREATER_EQUAL, LESS, LESS_EQUAL)) {
-      Token operator = previous();
-      Expr right = addition();
-      expr = new Expr.Binary(expr, operator, right);
-    }
-    return expr;
-  }
-
-  private Expr addition() {
-    Expr expr = multiplication();
-    while (match(MINUS, PLUS)) {
-      Token operator = previous();
-      Expr right = multiplication();
-      expr = new Expr.Binary(expr, operator, right);
     }
-    return expr;
   }
 
-  private Expr multiplication() {
-    Expr expr = unary();
-    while (match(SLASH, STAR)) {
-      Token operator = previous();
-      Expr right = unary();
-      expr = new Expr.Binary(expr, operator, right);
+  private void push(Pending kind, int precedence, Token operator, Expr first, Expr second) {
+    if (depth == pending.length) {
+      pending = Arrays.copyOf(pending, depth * 2);
+      precedences = Arrays.copyOf(precedences, depth * 2);
+      operators = Arrays.copyOf(operators, depth * 2);
+      firsts = Arrays.copyOf(firsts, depth * 2);
+      seconds = Arrays.copyOf(seconds, depth * 2);
     }
-    return expr;
+    pending[depth] = kind;
+    precedences[depth] = precedence;
+    operators[depth] = operator;
+    firsts[depth] = first;
+    seconds[depth++] = second;
   }
 
-  private Expr unary() {
-    if (match(BANG, MINUS)) {
-      Token operator = previous();
-      Expr right = unary();
-      return new Expr.Unary(operator, right);
+  private Expr literal() {
+    switch (tokens.type(current - 1)) {
+      case FALSE:
+        return node(new Expr.Literal(false));
+      case TRUE:
+        return node(new Expr.Literal(true));
+      case NIL:
+        return node(new Expr.Literal(null));
+      default:
+        return node(new Expr.Literal(tokens.literal(current - 1)));
     }
-    return primary();
   }
 
-  private Expr primary() {
-    if (match(FALSE)) {
-      return new Expr.Literal(false);
-    }
-    if (match(TRUE)) {
-      return new Expr.Literal(true);
-    }
-    if (match(NIL)) {
-      return new Expr.Literal(null);
-    }
-    if (match(NUMBER, STRING)) {
-      return new Expr.Literal(previous().literal);
-    }
-    if (match(IDENTIFIER)) {
-      return new Expr.Variable(previous());
+  /**
+   * Builds an assignment once its value has been parsed. A target that is not a variable is
+   * reported but not thrown, as the parser is not confused.
+   */
+  private Expr assignment(Expr target, Token equals, Expr value) {
+    if (target instanceof Expr.Variable) {
+      Token name = ((Expr.Variable) target).name;
+      return node(new Expr.Assign(name, value));
     }
-    if (match(LEFT_PAREN)) {
-      Expr expr = expression();
-      consume(RIGHT_PAREN, "Expect ')' after expression.");
-      return new Expr.Grouping(expr);
-    }
-    throw error(peek(), "Expect expression.");
+    error(equals, "Invalid assignment target.");
+    return target;
   }
 
-  private Token consume(TokenType type, String message) {
+  private void consume(TokenType type, String message) {
     if (check(type)) {
-      return advance();
+      advance();
+      return;
     }
     throw error(peek(), message);
   }
 
+  /** Counts a node that has been built, for {@link Metrics}. */
+  private <T> T node(T node) {
+    nodes++;
+    return node;
+  }
+
   private ParseError error(Token token, String message) {
-    Lox.error(token, message);
+    errors++;
+    diagnostics.error(token, message);
     return new ParseError();
   }
 
   private void synchronize() {
+    if (diagnostics.tooManyErrors()) {
+      // Nothing more can be reported and nothing will run, so skip straight to the end.
+      while (!isAtEnd()) {
+        current++;
+      }
+      return;
+    }
     advance();
     while (!isAtEnd()) {
-      if (previous().type == SEMICOLON) {
+      if (tokens.type(current - 1) == SEMICOLON) {
         return;
       }
-      switch (peek().type) {
+      switch (peekType()) {
         case CLASS:
         case FUN:
         case VAR:
@@ -237,12 +416,10 @@ final class Parser {
     }
   }
 
-  private boolean match(TokenType... types) {
-    for (TokenType type : types) {
-      if (check(type)) {
-        advance();
-        return true;
-      }
+  private boolean match(TokenType type) {
+    if (check(type)) {
+      advance();
+      return true;
     }
     return false;
   }
@@ -251,25 +428,29 @@ final class Parser {
     if (isAtEnd()) {
       return false;
     }
-    return peek().type == type;
+    return peekType() == type;
   }
 
-  private Token advance() {
+  private void advance() {
     if (!isAtEnd()) {
       current++;
     }
-    return previous();
   }
 
   private boolean isAtEnd() {
-    return peek().type == EOF;
+    return peekType() == EOF;
+  }
+
+  private TokenType peekType() {
+    return tokens.type(current);
   }
 
+  /** Materializes the current token; only needed for error reporting. */
   private Token peek() {
-    return tokens.get(current);
+    return tokens.token(current);
   }
 
   private Token previous() {
-    return tokens.get(current - 1);
+    return tokens.token(current - 1);
   }
 }
@@ -0,0 +1,243 @@
+package com.zacharyhirsch.lox;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Counts how often each statement and expression the {@link Interpreter} runs is evaluated, and
+ * how long it takes.
+ *
+ * <p>The interpreter calls {@link #enter} before evaluating a node and {@link #exit} after, even
+ * when it throws, so the profiler keeps the stack of nodes being evaluated. Each node's time is
+ * split into its own time and the time spent in the nodes it evaluated, and is also added up by
+ * source line. Every node keeps the node it was first entered from, which is enough to rebuild
+ * its stack since a node only ever has one parent.
+ *
+ * <p>A profiler is not thread-safe, and it keeps every node it has seen until it is dropped.
+ */
+final class Profiler {
+
+  /** How many nodes and lines {@link #report} lists. */
+  private static final int TOP = 20;
+
+  private static final class Node {
+
+    final Node parent;
+    final String label;
+    final int line;
+    long count = 0;
+    long total = 0;
+    long children = 0;
+
+    Node(Node parent, String label, int line) {
+      this.parent = parent;
+      this.label = label;
+      this.line = line;
+    }
+
+    long self() {
+      return total - children;
+    }
+  }
+
+  private final Map<Object, Node> nodes = new IdentityHashMap<>();
+  private Node[] stack = new Node[64];
+  private long[] starts = new long[64];
+  private int depth = 0;
+
+  /** Starts timing {@code node}, a {@link Stmt} or an {@link Expr}. */
+  void enter(Object node) {
+    Node parent = depth == 0 ? null : stack[depth - 1];
+    Node profiled = nodes.get(node);
+    if (profiled == null) {
+      profiled = new Node(parent, label(node), line(node, parent));
+      nodes.put(node, profiled);
+    }
+    if (depth == stack.length) {
+      stack = Arrays.copyOf(stack, depth * 2);
+      starts = Arrays.copyOf(starts, depth * 2);
+    }
+    stack[depth] = profiled;
+    starts[depth++] = System.nanoTime();
+  }
+
+  /** Stops timing the node most recently entered. */
+  void exit() {
+    long elapsed = System.nanoTime() - starts[--depth];
+    Node node = stack[depth];
+    stack[depth] = null;
+    node.count++;
+    node.total += elapsed;
+    if (depth > 0) {
+      stack[depth - 1].children += elapsed;
+    }
+  }
+
+  /** Prints the nodes and the lines that took the most time of their own. */
+  void report(PrintStream out) {
+    List<Node> hot = new ArrayList<>(nodes.values());
+    long total = 0;
+    long executed = 0;
+    Map<Integer, long[]> lines = new TreeMap<>();
+    for (Node node : hot) {
+      if (node.parent == null) {
+        total += node.total;
+      }
+      executed += node.count;
+      long[] line = lines.computeIfAbsent(node.line, l -> new long[2]);
+      line[0] += node.count;
+      line[1] += node.self();
+    }
+    out.printf("Profile: %d nodes executed in %.3f ms%n", executed, millis(total));
+
+    List<Map.Entry<Integer, long[]>> hotLines = new ArrayList<>(lines.entrySet());
+    hotLines.sort(Comparator.comparingLong(e -> -e.getValue()[1]));
+    out.printf("%nHot lines:%n%8s %12s %12s %7s%n", "line", "executions", "self ms", "self %");
+    for (Map.Entry<Integer, long[]> line : hotLines.subList(0, Math.min(TOP, hotLines.size()))) {
+      out.printf(
+          "%8s %12d %12.3f %6.1f%%%n",
+          line.getKey() > 0 ? line.getKey().toString() : "?",
+          line.getValue()[0],
+          millis(line.getValue()[1]),
+          percent(line.getValue()[1], total));
+    }
+
+    hot.sort(Comparator.comparingLong(node -> -node.self()));
+    out.printf(
+        "%nHot nodes:%n%8s %12s %12s %12s %7s  %s%n",
+        "line", "executions", "self ms", "total ms", "self %", "node");
+    for (Node node : hot.subList(0, Math.min(TOP, hot.size()))) {
+      out.printf(
+          "%8s %12d %12.3f %12.3f %6.1f%%  %s%n",
+          node.line > 0 ? Integer.toString(node.line) : "?",
+          node.count,
+          millis(node.self()),
+          millis(node.total),
+          percent(node.self(), total),
+          node.label);
+    }
+    out.flush();
+  }
+
+  /**
+   * Writes each node's own time in nanoseconds under its stack, one stack per line with the frames
+   * separated by semicolons, as flame graph tools read.
+   */
+  void writeStacks(Path path) throws IOException {
+    try (Writer out = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+      StringBuilder frames = new StringBuilder();
+      for (Node node : nodes.values()) {
+        if (node.self() <= 0) {
+          continue;
+        }
+        frames.setLength(0);
+        for (Node frame = node; frame != null; frame = frame.parent) {
+          frames.insert(0, frame.label + " (line " + frame.line + ")");
+          if (frame.parent != null) {
+            frames.insert(0, ';');
+          }
+        }
+        out.write(frames.append(' ').append(node.self()).append('\n').toString());
+      }
+    }
+  }
+
+  private static double millis(long nanos) {
+    return nanos / 1e6;
+  }
+
+  private static double percent(long part, long whole) {
+    return whole == 0 ? 0 : 100.0 * part / whole;
+  }
+
+  private static String label(Object node) {
+    if (node instanceof Stmt.Var) {
+      return "var " + ((Stmt.Var) node).name.lexeme;
+    } else if (node instanceof Stmt.Print) {
+      return "print";
+    } else if (node instanceof Stmt.Expression) {
+      return "expression statement";
+    } else if (node instanceof Expr.Assign) {
+      return ((Expr.Assign) node).name.lexeme + " =";
+    } else if (node instanceof Expr.Binary) {
+      return "binary " + ((Expr.Binary) node).operator.lexeme;
+    } else if (node instanceof Expr.Unary) {
+      return "unary " + ((Expr.Unary) node).operator.lexeme;
+    } else if (node instanceof Expr.Ternary) {
+      return "?:";
+    } else if (node instanceof Expr.Grouping) {
+      return "( )";
+    } else if (node instanceof Expr.Variable) {
+      return ((Expr.Variable) node).name.lexeme;
+    } else if (node instanceof Expr.Literal) {
+      return "literal " + literal(((Expr.Literal) node).value);
+    }
+    return node.getClass().getSimpleName();
+  }
+
+  /**
+   * Formats a literal short enough for a report, and without the semicolons and line breaks that
+   * would split a stack.
+   */
+  private static String literal(Object value) {
+    String text = Interpreter.stringify(value);
+    if (text.length() > 24) {
+      text = text.substring(0, 21) + "...";
+    }
+    text = text.replaceAll("[;\\s]", " ");
+    return Rope.isString(value) ? '"' + text + '"' : text;
+  }
+
+  /**
+   * Returns the line of the first token in {@code node}, or of its parent if it has none, such as
+   * a literal. Zero means the line is unknown.
+   */
+  private static int line(Object node, Node parent) {
+    int line = 0;
+    if (node instanceof Stmt.Var) {
+      line = ((Stmt.Var) node).name.line;
+    } else if (node instanceof Stmt.Print) {
+      line = line(((Stmt.Print) node).expression);
+    } else if (node instanceof Stmt.Expression) {
+      line = line(((Stmt.Expression) node).expression);
+    } else if (node instanceof Expr) {
+      line = line((Expr) node);
+    }
+    return line == 0 && parent != null ? parent.line : line;
+  }
+
+  /** Walks down the left edge of {@code expr}, as its first token is there. */
+  private static int line(Expr expr) {
+    // A literal has no token, so fall back to the operator it is the left operand of.
+    int operator = 0;
+    while (true) {
+      if (expr instanceof Expr.Binary) {
+        operator = ((Expr.Binary) expr).operator.line;
+        expr = ((Expr.Binary) expr).left;
+      } else if (expr instanceof Expr.Ternary) {
+        expr = ((Expr.Ternary) expr).predicate;
+      } else if (expr instanceof Expr.Grouping) {
+        expr = ((Expr.Grouping) expr).expression;
+      } else if (expr instanceof Expr.Assign) {
+        return ((Expr.Assign) expr).name.line;
+      } else if (expr instanceof Expr.Unary) {
+        return ((Expr.Unary) expr).operator.line;
+      } else if (expr instanceof Expr.Variable) {
+        return ((Expr.Variable) expr).name.line;
+      } else {
+        return operator;
+      }
+    }
+  }
+}
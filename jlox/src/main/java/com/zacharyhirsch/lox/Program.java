@@ -0,0 +1,29 @@
+package com.zacharyhirsch.lox;
+
+import java.util.List;
+
+/**
+ * A compiled script, ready to run in any number of {@link Context}s at once.
+ *
+ * <p>Everything is fixed when the program is created: the statements have been optimized and
+ * resolved, and compiled to a {@link Chunk} or a {@link JitProgram} when they will not be
+ * interpreted. Globals are bound to slots that belong to the program alone, listed in {@link
+ * #globals}. The only thing written afterwards is the {@link BinarySpecialization} cache on each
+ * binary node, and since every specialization checks its own guard, threads that race on it only
+ * cost each other a respecialization.
+ */
+public final class Program {
+
+  final List<Stmt> statements;
+  /** The name of the global bound to each slot. */
+  final String[] globals;
+  final Chunk chunk;
+  final JitProgram jit;
+
+  Program(List<Stmt> statements, String[] globals, Chunk chunk, JitProgram jit) {
+    this.statements = statements;
+    this.globals = globals;
+    this.chunk = chunk;
+    this.jit = jit;
+  }
+}
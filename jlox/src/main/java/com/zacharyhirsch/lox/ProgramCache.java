@@ -0,0 +1,198 @@
+package com.zacharyhirsch.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps parsed and optimized programs on disk so that running an unchanged script again can skip
+ * scanning, parsing and optimizing it.
+ *
+ * <p>Entries are named after a SHA-256 hash of the source and of a {@code variant} string, which
+ * describes anything else that changes the stored program, such as the optimizer passes. Each entry
+ * holds a magic number, the format version, the full key and a CRC-32 of the program, so a stale,
+ * truncated or corrupt entry is detected, deleted and rebuilt rather than run.
+ *
+ * <p>The cache is best effort: if the directory cannot be read or written, programs are simply
+ * parsed as if there were no cache. Once the entries take up more than {@code maxBytes}, the least
+ * recently used are evicted. Every hit touches its entry's modification time to track use.
+ */
+final class ProgramCache {
+
+  private static final int MAGIC = 0x4c4f5843; // "LOXC"
+  private static final int VERSION = 1;
+  private static final String SUFFIX = ".loxc";
+  private static final int KEY_SIZE = 32;
+  private static final int HEADER_SIZE = 4 + 4 + KEY_SIZE + 4 + 8;
+
+  private final Path directory;
+  private final long maxBytes;
+
+  ProgramCache(Path directory, long maxBytes) {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+  }
+
+  /** Returns the stored program for {@code source}, or null if there is no usable entry. */
+  List<Stmt> load(String source, String variant) {
+    byte[] key = key(source, variant);
+    Path path = path(key);
+    byte[] data;
+    try {
+      data = Files.readAllBytes(path);
+    } catch (IOException e) {
+      return null;
+    }
+    List<Stmt> statements = decode(data, key);
+    if (statements == null) {
+      delete(path);
+      return null;
+    }
+    try {
+      Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+    } catch (IOException e) {
+      // The entry is still good; it will just look older than it is.
+    }
+    return statements;
+  }
+
+  void store(String source, String variant, List<Stmt> statements) {
+    byte[] key = key(source, variant);
+    byte[] data = encode(ProgramSerializer.write(statements), key);
+    Path path = path(key);
+    try {
+      Files.createDirectories(directory);
+      Path temp = Files.createTempFile(directory, "tmp", SUFFIX + ".tmp");
+      try {
+        Files.write(temp, data);
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(temp);
+      }
+      evict();
+    } catch (IOException e) {
+      // Leave the program uncached.
+    }
+  }
+
+  private static byte[] encode(byte[] program, byte[] key) {
+    CRC32 crc = new CRC32();
+    crc.update(program);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_SIZE + program.length);
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.write(key);
+      out.writeInt(program.length);
+      out.writeLong(crc.getValue());
+      out.write(program);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static List<Stmt> decode(byte[] data, byte[] key) {
+    if (data.length < HEADER_SIZE) {
+      return null;
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(data);
+    if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+      return null;
+    }
+    byte[] storedKey = new byte[KEY_SIZE];
+    buffer.get(storedKey);
+    int length = buffer.getInt();
+    long checksum = buffer.getLong();
+    if (!Arrays.equals(storedKey, key) || length != buffer.remaining()) {
+      return null;
+    }
+    CRC32 crc = new CRC32();
+    crc.update(data, HEADER_SIZE, length);
+    if (crc.getValue() != checksum) {
+      return null;
+    }
+    try {
+      return ProgramSerializer.read(Arrays.copyOfRange(data, HEADER_SIZE, data.length));
+    } catch (IOException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  /** Deletes the least recently used entries until the rest fit in {@code maxBytes}. */
+  private void evict() throws IOException {
+    List<Path> entries = new ArrayList<>();
+    long total = 0;
+    try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+      for (Path path : paths) {
+        entries.add(path);
+        total += Files.size(path);
+      }
+    }
+    if (total <= maxBytes) {
+      return;
+    }
+    entries.sort(Comparator.comparing(ProgramCache::lastModified));
+    for (Path path : entries) {
+      if (total <= maxBytes) {
+        break;
+      }
+      long size = Files.size(path);
+      if (delete(path)) {
+        total -= size;
+      }
+    }
+  }
+
+  private static FileTime lastModified(Path path) {
+    try {
+      return Files.getLastModifiedTime(path);
+    } catch (IOException e) {
+      return FileTime.fromMillis(0);
+    }
+  }
+
+  private static boolean delete(Path path) {
+    try {
+      return Files.deleteIfExists(path);
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /** Returns the SHA-256 hash that identifies {@code source} compiled as {@code variant}. */
+  static byte[] key(String source, String variant) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    digest.update(variant.getBytes(StandardCharsets.UTF_8));
+    digest.update((byte) 0);
+    return digest.digest(source.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private Path path(byte[] key) {
+    StringBuilder name = new StringBuilder(KEY_SIZE * 2 + SUFFIX.length());
+    for (byte b : key) {
+      name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return directory.resolve(name.append(SUFFIX).toString());
+  }
+}
@@ -0,0 +1,415 @@
+package com.zacharyhirsch.lox;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts a parsed program to and from a compact binary form.
+ *
+ * <p>Nodes are written depth-first as a tag byte followed by their fields. Strings go through a
+ * table so each distinct lexeme is only written once. Tokens keep their type, lexeme and line; the
+ * tokens a tree holds on to never carry a literal, so that is not written. Annotations filled in
+ * by later passes, such as slots, are not written either.
+ *
+ * <p>Neither direction recurses, so any program the parser accepts can be written and read back:
+ * expressions are written with an {@link ExprStack}, and read with a stack of the nodes whose
+ * operands are still being read.
+ */
+final class ProgramSerializer {
+
+  private static final byte ASSIGN = 0;
+  private static final byte BINARY = 1;
+  private static final byte GROUPING = 2;
+  private static final byte LITERAL = 3;
+  private static final byte UNARY = 4;
+  private static final byte TERNARY = 5;
+  private static final byte VARIABLE = 6;
+
+  private static final byte EXPRESSION = 0;
+  private static final byte PRINT = 1;
+  private static final byte VAR = 2;
+
+  private static final byte NIL = 0;
+  private static final byte FALSE = 1;
+  private static final byte TRUE = 2;
+  private static final byte NUMBER = 3;
+  private static final byte STRING = 4;
+
+  private static final TokenType[] TYPES = TokenType.values();
+
+  private ProgramSerializer() {}
+
+  static byte[] write(List<Stmt> statements) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    Writer writer = new Writer(new DataOutputStream(bytes));
+    try {
+      writer.writeInt(statements.size());
+      for (Stmt statement : statements) {
+        statement.accept(writer);
+      }
+      writer.out.flush();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /** Reads a program back, throwing {@link IOException} if the bytes are not a valid one. */
+  static List<Stmt> read(byte[] data) throws IOException {
+    Reader reader = new Reader(new DataInputStream(new ByteArrayInputStream(data)));
+    int count = reader.readInt();
+    List<Stmt> statements = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      statements.add(reader.readStmt());
+    }
+    if (reader.in.read() != -1) {
+      throw new IOException("Trailing data after program.");
+    }
+    return statements;
+  }
+
+  private static final class Writer implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+    private final DataOutputStream out;
+    private final Map<String, Integer> strings = new HashMap<>();
+    private final ExprStack stack = new ExprStack();
+
+    Writer(DataOutputStream out) {
+      this.out = out;
+    }
+
+    // The expression visit methods write a node's tag and the fields that come before its first
+    // operand; write() writes the operands and the operator between a binary's.
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+      writeByte(ASSIGN);
+      writeToken(expr.name);
+      return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+      writeByte(BINARY);
+      return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+      writeByte(GROUPING);
+      return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+      writeByte(LITERAL);
+      if (expr.value == null) {
+        writeByte(NIL);
+      } else if (expr.value instanceof Boolean) {
+        writeByte((boolean) expr.value ? TRUE : FALSE);
+      } else if (expr.value instanceof Double) {
+        writeByte(NUMBER);
+        try {
+          out.writeDouble((double) expr.value);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      } else {
+        writeByte(STRING);
+        writeString((String) expr.value);
+      }
+      return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+      writeByte(UNARY);
+      writeToken(expr.operator);
+      return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+      writeByte(TERNARY);
+      return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+      writeByte(VARIABLE);
+      writeToken(expr.name);
+      return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+      writeByte(EXPRESSION);
+      write(stmt.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+      writeByte(PRINT);
+      write(stmt.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+      writeByte(VAR);
+      writeToken(stmt.name);
+      if (stmt.initializer == null) {
+        writeByte(0);
+      } else {
+        writeByte(1);
+        write(stmt.initializer);
+      }
+      return null;
+    }
+
+    private void write(Expr expr) {
+      stack.push(expr);
+      while (!stack.isEmpty()) {
+        Expr top = stack.peek();
+        int visit = stack.next();
+        if (visit == 0) {
+          top.accept(this);
+        } else if (visit == 1 && top instanceof Expr.Binary) {
+          writeToken(((Expr.Binary) top).operator);
+        }
+        Expr operand = ExprStack.operand(top, visit);
+        if (operand != null) {
+          stack.push(operand);
+        } else {
+          stack.pop();
+        }
+      }
+    }
+
+    private void writeToken(Token token) {
+      writeByte(token.type.ordinal());
+      writeString(token.lexeme);
+      writeInt(token.line);
+    }
+
+    private void writeString(String string) {
+      Integer index = strings.get(string);
+      if (index != null) {
+        writeInt(index + 1);
+        return;
+      }
+      strings.put(string, strings.size());
+      byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+      writeInt(0);
+      writeInt(bytes.length);
+      try {
+        out.write(bytes);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    private void writeByte(int b) {
+      try {
+        out.writeByte(b);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    /** Writes a non-negative int in 7-bit groups, so small values take a single byte. */
+    private void writeInt(int value) {
+      while ((value & ~0x7f) != 0) {
+        writeByte((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      writeByte(value);
+    }
+  }
+
+  private static final class Reader {
+
+    private final DataInputStream in;
+    private final List<String> strings = new ArrayList<>();
+    private final Symbols symbols = new Symbols();
+
+    // The nodes whose operands are being read, innermost last: each one's tag, its token, and how
+    // many operands it is still waiting for. Operands that have been read wait on their own stack.
+    private byte[] tags = new byte[16];
+    private Token[] tokens = new Token[16];
+    private int[] remaining = new int[16];
+    private int depth = 0;
+    private final List<Expr> operands = new ArrayList<>();
+
+    Reader(DataInputStream in) {
+      this.in = in;
+    }
+
+    Stmt readStmt() throws IOException {
+      byte tag = in.readByte();
+      switch (tag) {
+        case EXPRESSION:
+          return new Stmt.Expression(readExpr());
+        case PRINT:
+          return new Stmt.Print(readExpr());
+        case VAR:
+          {
+            Token name = readToken();
+            Expr initializer = in.readByte() == 0 ? null : readExpr();
+            return new Stmt.Var(name, initializer);
+          }
+        default:
+          throw new IOException("Unknown statement tag " + tag + ".");
+      }
+    }
+
+    Expr readExpr() throws IOException {
+      operand:
+      while (true) {
+        byte tag = in.readByte();
+        switch (tag) {
+          case ASSIGN:
+          case UNARY:
+            push(tag, readToken(), 1);
+            continue operand;
+          case BINARY:
+            push(tag, null, 2);
+            continue operand;
+          case GROUPING:
+            push(tag, null, 1);
+            continue operand;
+          case TERNARY:
+            push(tag, null, 3);
+            continue operand;
+          case LITERAL:
+            operands.add(new Expr.Literal(readLiteral()));
+            break;
+          case VARIABLE:
+            operands.add(new Expr.Variable(readToken()));
+            break;
+          default:
+            throw new IOException("Unknown expression tag " + tag + ".");
+        }
+        // An operand is complete, so build every node it completes.
+        while (depth > 0) {
+          int top = depth - 1;
+          if (--remaining[top] > 0) {
+            if (tags[top] == BINARY) {
+              tokens[top] = readToken();
+            }
+            continue operand;
+          }
+          depth--;
+          Token token = tokens[top];
+          tokens[top] = null;
+          switch (tags[top]) {
+            case ASSIGN:
+              operands.add(new Expr.Assign(token, pop()));
+              break;
+            case UNARY:
+              operands.add(new Expr.Unary(token, pop()));
+              break;
+            case GROUPING:
+              operands.add(new Expr.Grouping(pop()));
+              break;
+            case BINARY:
+              {
+                Expr right = pop();
+                operands.add(new Expr.Binary(pop(), token, right));
+                break;
+              }
+            default:
+              {
+                Expr f = pop();
+                Expr t = pop();
+                operands.add(new Expr.Ternary(pop(), t, f));
+                break;
+              }
+          }
+        }
+        return pop();
+      }
+    }
+
+    private void push(byte tag, Token token, int operands) {
+      if (depth == tags.length) {
+        tags = Arrays.copyOf(tags, depth * 2);
+        tokens = Arrays.copyOf(tokens, depth * 2);
+        remaining = Arrays.copyOf(remaining, depth * 2);
+      }
+      tags[depth] = tag;
+      tokens[depth] = token;
+      remaining[depth++] = operands;
+    }
+
+    private Expr pop() {
+      return operands.remove(operands.size() - 1);
+    }
+
+    private Object readLiteral() throws IOException {
+      byte tag = in.readByte();
+      switch (tag) {
+        case NIL:
+          return null;
+        case FALSE:
+          return false;
+        case TRUE:
+          return true;
+        case NUMBER:
+          return in.readDouble();
+        case STRING:
+          return readString().intern();
+        default:
+          throw new IOException("Unknown literal tag " + tag + ".");
+      }
+    }
+
+    private Token readToken() throws IOException {
+      int type = in.readUnsignedByte();
+      if (type >= TYPES.length) {
+        throw new IOException("Unknown token type " + type + ".");
+      }
+      String lexeme = readString();
+      int symbol = TYPES[type] == TokenType.IDENTIFIER ? symbols.intern(lexeme) : Token.NO_SYMBOL;
+      return new Token(TYPES[type], lexeme, null, readInt(), symbol);
+    }
+
+    private String readString() throws IOException {
+      int index = readInt();
+      if (index > 0) {
+        if (index > strings.size()) {
+          throw new IOException("Unknown string " + index + ".");
+        }
+        return strings.get(index - 1);
+      }
+      byte[] bytes = new byte[readInt()];
+      in.readFully(bytes);
+      String string = new String(bytes, StandardCharsets.UTF_8);
+      strings.add(string);
+      return string;
+    }
+
+    int readInt() throws IOException {
+      int value = 0;
+      for (int shift = 0; shift < 32; shift += 7) {
+        int b = in.readUnsignedByte();
+        value |= (b & 0x7f) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new IOException("Malformed integer.");
+    }
+  }
+}
@@ -0,0 +1,121 @@
+package com.zacharyhirsch.lox;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Binds every variable declaration and reference to a slot in the {@link Environment}, and
+ * records how deeply each statement's expressions nest.
+ *
+ * <p>Slots are numbered from zero in the order names are first seen, so each {@link Program} gets
+ * its own compact set of slots no matter where else it runs. Names are looked up by their {@link
+ * Symbols symbol} in an open-addressing table of slots, so resolving allocates nothing per name;
+ * the statements must all come from one scanner or reader, so their symbols agree.
+ *
+ * <p>Expressions are walked with an {@link ExprStack} rather than by recursion, so any expression
+ * the parser accepts can be resolved.
+ */
+final class Resolver implements Stmt.Visitor<Void> {
+
+  /** The symbol and name bound to each slot. */
+  private int[] symbols = new int[16];
+  private String[] names = new String[16];
+  private int count = 0;
+
+  /** Slots plus one, placed by the hash of their symbol, with zero for an empty entry. */
+  private int[] table = new int[32];
+
+  private final ExprStack stack = new ExprStack();
+
+  void resolve(List<Stmt> statements) {
+    for (Stmt statement : statements) {
+      statement.accept(this);
+    }
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    stmt.depth = resolve(stmt.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    stmt.depth = resolve(stmt.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    if (stmt.initializer != null) {
+      stmt.depth = resolve(stmt.initializer);
+    }
+    stmt.slot = slotFor(stmt.name);
+    return null;
+  }
+
+  /** Returns the name bound to each slot, indexed by slot. */
+  String[] names() {
+    return Arrays.copyOf(names, count);
+  }
+
+  /**
+   * Binds the variables in {@code expr} after the operands they are evaluated after, and returns
+   * how many levels deep it nests.
+   */
+  private int resolve(Expr expr) {
+    int depth = 0;
+    stack.push(expr);
+    while (!stack.isEmpty()) {
+      depth = Math.max(depth, stack.size());
+      Expr top = stack.peek();
+      Expr operand = ExprStack.operand(top, stack.next());
+      if (operand != null) {
+        stack.push(operand);
+        continue;
+      }
+      stack.pop();
+      if (top instanceof Expr.Assign) {
+        ((Expr.Assign) top).slot = slotFor(((Expr.Assign) top).name);
+      } else if (top instanceof Expr.Variable) {
+        ((Expr.Variable) top).slot = slotFor(((Expr.Variable) top).name);
+      }
+    }
+    return depth;
+  }
+
+  private int slotFor(Token name) {
+    int symbol = name.symbol;
+    int mask = table.length - 1;
+    int i = Symbols.hash(symbol) & mask;
+    for (; table[i] != 0; i = (i + 1) & mask) {
+      if (symbols[table[i] - 1] == symbol) {
+        return table[i] - 1;
+      }
+    }
+    if (count == symbols.length) {
+      symbols = Arrays.copyOf(symbols, count * 2);
+      names = Arrays.copyOf(names, count * 2);
+    }
+    int slot = count++;
+    symbols[slot] = symbol;
+    names[slot] = name.lexeme;
+    table[i] = slot + 1;
+    if (2 * count > table.length) {
+      rehash();
+    }
+    return slot;
+  }
+
+  private void rehash() {
+    table = new int[table.length * 2];
+    int mask = table.length - 1;
+    for (int slot = 0; slot < count; slot++) {
+      int i = Symbols.hash(symbols[slot]) & mask;
+      while (table[i] != 0) {
+        i = (i + 1) & mask;
+      }
+      table[i] = slot + 1;
+    }
+  }
+}
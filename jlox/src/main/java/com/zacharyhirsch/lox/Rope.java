@@ -0,0 +1,129 @@
+package com.zacharyhirsch.lox;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A Lox string built by {@code +} that has not been copied into a {@link String} yet.
+ *
+ * <p>Lox strings are either a {@link String} or a rope, whose two halves are each one or the
+ * other. Concatenating onto a rope makes a new node in constant time, so building a string up
+ * piece by piece is linear instead of quadratic. The rope is only flattened, once, when something
+ * needs its characters: printing it, comparing it with a string of the same length, or hashing it.
+ * Results short enough that copying is cheaper than a node are built as a {@link String} directly.
+ */
+final class Rope implements CharSequence {
+
+  /** Concatenations at most this long are copied rather than made into a rope. */
+  static final int MIN_LENGTH = 64;
+
+  /** The longest string the JVM can make. */
+  private static final int MAX_LENGTH = Integer.MAX_VALUE - 8;
+
+  private final int length;
+  private CharSequence left;
+  private CharSequence right;
+  private volatile String flat;
+
+  private Rope(CharSequence left, CharSequence right, int length) {
+    this.left = left;
+    this.right = right;
+    this.length = length;
+  }
+
+  /** Whether {@code value} is a Lox string. */
+  static boolean isString(Object value) {
+    return value instanceof String || value instanceof Rope;
+  }
+
+  /**
+   * Concatenates two Lox values, at least one of them a string, as {@code +} does, formatting the
+   * other with {@link Interpreter#stringify} if it is not a string.
+   */
+  static Object concat(Object left, Object right) {
+    CharSequence leftString = toCharSequence(left);
+    CharSequence rightString = toCharSequence(right);
+    if (leftString.length() == 0) {
+      return rightString;
+    }
+    if (rightString.length() == 0) {
+      return leftString;
+    }
+    long length = (long) leftString.length() + rightString.length();
+    if (length > MAX_LENGTH) {
+      throw new OutOfMemoryError("Requested string length exceeds VM limit");
+    }
+    if (length <= MIN_LENGTH) {
+      return leftString.toString().concat(rightString.toString());
+    }
+    return new Rope(leftString, rightString, (int) length);
+  }
+
+  private static CharSequence toCharSequence(Object value) {
+    return isString(value) ? (CharSequence) value : Interpreter.stringify(value);
+  }
+
+  @Override
+  public int length() {
+    return length;
+  }
+
+  @Override
+  public char charAt(int index) {
+    return toString().charAt(index);
+  }
+
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    return toString().subSequence(start, end);
+  }
+
+  /** Returns the characters of the rope, flattening it the first time. */
+  @Override
+  public String toString() {
+    String flat = this.flat;
+    if (flat == null) {
+      flat = flatten();
+      this.flat = flat;
+      // The halves are no longer needed, and keeping them would hold on to every piece.
+      left = null;
+      right = null;
+    }
+    return flat;
+  }
+
+  /** Copies the pieces left to right, without recursing, as ropes are usually very deep. */
+  private String flatten() {
+    StringBuilder builder = new StringBuilder(length);
+    Deque<CharSequence> pending = new ArrayDeque<>();
+    pending.push(this);
+    while (!pending.isEmpty()) {
+      CharSequence piece = pending.pop();
+      if (piece instanceof Rope && ((Rope) piece).flat == null) {
+        pending.push(((Rope) piece).right);
+        pending.push(((Rope) piece).left);
+      } else {
+        // A rope that is already flat appends its string.
+        builder.append(piece instanceof Rope ? ((Rope) piece).flat : piece);
+      }
+    }
+    return builder.toString();
+  }
+
+  /** Lox strings are equal when they have the same characters, whether flattened or not. */
+  @Override
+  public boolean equals(Object other) {
+    if (other == this) {
+      return true;
+    }
+    if (!isString(other) || ((CharSequence) other).length() != length) {
+      return false;
+    }
+    return toString().equals(other.toString());
+  }
+
+  @Override
+  public int hashCode() {
+    return toString().hashCode();
+  }
+}
@@ -1,9 +1,9 @@
 package com.zacharyhirsch.lox;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.util.List;
-import java.util.Map;
 
 import static com.zacharyhirsch.lox.TokenType.AND;
 import static com.zacharyhirsch.lox.TokenType.BANG;
@@ -49,49 +49,108 @@ import static com.zacharyhirsch.lox.TokenType.WHILE;
 
 final class Scanner {
 
-  private static final Map<String, TokenType> KEYWORDS;
-
-  static {
-    KEYWORDS = new HashMap<>();
-    KEYWORDS.put("and", AND);
-    KEYWORDS.put("class", CLASS);
-    KEYWORDS.put("else", ELSE);
-    KEYWORDS.put("false", FALSE);
-    KEYWORDS.put("for", FOR);
-    KEYWORDS.put("fun", FUN);
-    KEYWORDS.put("if", IF);
-    KEYWORDS.put("nil", NIL);
-    KEYWORDS.put("or", OR);
-    KEYWORDS.put("print", PRINT);
-    KEYWORDS.put("return", RETURN);
-    KEYWORDS.put("super", SUPER);
-    KEYWORDS.put("this", THIS);
-    KEYWORDS.put("true", TRUE);
-    KEYWORDS.put("var", VAR);
-    KEYWORDS.put("while", WHILE);
-  }
+  private static final int CHUNK_SIZE = 1 << 16;
+
+  private final Reader reader;
+  private final char[] chunk;
+  private final Symbols symbols = new Symbols();
+  private final PackedTokens tokens;
+  private final Diagnostics diagnostics;
 
-  private final String source;
-  private final List<Token> tokens = new ArrayList<>();
+  /**
+   * The part of the input being scanned. When reading from a {@link Reader}, this is a window
+   * that starts at absolute offset {@link #offset} and slides forward as tokens are discarded.
+   */
+  private String source;
+  private int offset = 0;
 
   private int start = 0;
   private int current = 0;
   private int line = 1;
-
-  public Scanner(String source) {
+  private boolean done = false;
+  private boolean exhausted = false;
+  private long streamNanos = 0;
+
+  public Scanner(String source, Diagnostics diagnostics) {
+    this.diagnostics = diagnostics;
+    this.reader = null;
+    this.chunk = null;
     this.source = source;
+    this.tokens = new PackedTokens(source, symbols);
+  }
+
+  /** Creates a scanner that reads its input incrementally rather than all up front. */
+  Scanner(Reader reader, Diagnostics diagnostics) {
+    this.diagnostics = diagnostics;
+    this.reader = reader;
+    this.chunk = new char[CHUNK_SIZE];
+    this.source = "";
+    this.tokens = new PackedTokens(source, symbols);
   }
 
   List<Token> scanTokens() {
-    while (!isAtEnd()) {
-      start = current;
-      scanToken();
+    return scanPacked().toList();
+  }
+
+  PackedTokens scanPacked() {
+    Events.Scan event = null;
+    if (Events.enabled()) {
+      event = new Events.Scan();
+      event.begin();
+    }
+    long start = System.nanoTime();
+    while (scanMore()) {}
+    Metrics.INSTANCE.recordScan(System.nanoTime() - start, tokens.size());
+    if (event != null) {
+      event.end();
+      if (event.shouldCommit()) {
+        event.sourceLength = source.length();
+        event.tokens = tokens.size();
+        event.commit();
+      }
     }
+    return tokens;
+  }
 
-    tokens.add(new Token(EOF, "", null, line));
+  /** Returns the tokens without scanning any; they are scanned as they are asked for. */
+  PackedTokens stream() {
+    tokens.streamFrom(this);
     return tokens;
   }
 
+  /**
+   * Scans more as {@link #scanMore} does, for tokens that are streamed, and records the whole scan
+   * once EOF has been added.
+   */
+  boolean scanStreamed() {
+    long begin = System.nanoTime();
+    boolean more = scanMore();
+    streamNanos += System.nanoTime() - begin;
+    if (more && done) {
+      Metrics.INSTANCE.recordScan(streamNanos, tokens.size());
+    }
+    return more;
+  }
+
+  /** Scans until at least one more token has been added, returning false once EOF has been. */
+  boolean scanMore() {
+    if (done) {
+      return false;
+    }
+    int before = tokens.size();
+    while (tokens.size() == before) {
+      // Past the maximum errors nothing more can be reported, so end the input early.
+      if (isAtEnd() || diagnostics.tooManyErrors()) {
+        tokens.add(EOF, offset + current, 0, line);
+        done = true;
+        break;
+      }
+      start = current;
+      scanToken();
+    }
+    return true;
+  }
+
   private void scanToken() {
     char c = advance();
     switch (c) {
@@ -172,7 +231,7 @@ final class Scanner {
         } else if (isAlpha(c)) {
           identifier();
         } else {
-          Lox.error(line, "Unexpected character.");
+          diagnostics.error(line, "Unexpected character.");
         }
         break;
     }
@@ -182,12 +241,70 @@ final class Scanner {
     while (isAlphaNumeric(peek())) {
       advance();
     }
-    String text = source.substring(start, current);
-    TokenType type = KEYWORDS.get(text);
-    if (type == null) {
-      type = IDENTIFIER;
+    TokenType type = identifierType();
+    if (type == IDENTIFIER) {
+      int symbol = symbols.intern(source, start, current);
+      tokens.add(type, offset + start, current - start, line, symbol);
+    } else {
+      addToken(type);
     }
-    addToken(type);
+  }
+
+  private TokenType identifierType() {
+    switch (source.charAt(start)) {
+      case 'a':
+        return checkKeyword(1, "nd", AND);
+      case 'c':
+        return checkKeyword(1, "lass", CLASS);
+      case 'e':
+        return checkKeyword(1, "lse", ELSE);
+      case 'f':
+        if (current - start > 1) {
+          switch (source.charAt(start + 1)) {
+            case 'a':
+              return checkKeyword(2, "lse", FALSE);
+            case 'o':
+              return checkKeyword(2, "r", FOR);
+            case 'u':
+              return checkKeyword(2, "n", FUN);
+          }
+        }
+        break;
+      case 'i':
+        return checkKeyword(1, "f", IF);
+      case 'n':
+        return checkKeyword(1, "il", NIL);
+      case 'o':
+        return checkKeyword(1, "r", OR);
+      case 'p':
+        return checkKeyword(1, "rint", PRINT);
+      case 'r':
+        return checkKeyword(1, "eturn", RETURN);
+      case 's':
+        return checkKeyword(1, "uper", SUPER);
+      case 't':
+        if (current - start > 1) {
+          switch (source.charAt(start + 1)) {
+            case 'h':
+              return checkKeyword(2, "is", THIS);
+            case 'r':
+              return checkKeyword(2, "ue", TRUE);
+          }
+        }
+        break;
+      case 'v':
+        return checkKeyword(1, "ar", VAR);
+      case 'w':
+        return checkKeyword(1, "hile", WHILE);
+    }
+    return IDENTIFIER;
+  }
+
+  private TokenType checkKeyword(int offset, String rest, TokenType type) {
+    if (current - start == offset + rest.length() && source.startsWith(rest, start + offset)) {
+      return type;
+    }
+    return IDENTIFIER;
   }
 
   private void number() {
@@ -202,8 +319,7 @@ final class Scanner {
       }
     }
 
-    double value = Double.parseDouble(source.substring(start, current));
-    addToken(NUMBER, value);
+    addToken(NUMBER);
   }
 
   private boolean isDigit(char c) {
@@ -219,14 +335,12 @@ final class Scanner {
     }
 
     if (isAtEnd()) {
-      Lox.error(line, "Unterminated string.");
+      diagnostics.error(line, "Unterminated string.");
       return;
     }
 
     advance();
-
-    String value = source.substring(start + 1, current - 1);
-    addToken(STRING, value);
+    addToken(STRING);
   }
 
   private boolean match(char expected) {
@@ -248,7 +362,7 @@ final class Scanner {
   }
 
   private char peekNext() {
-    if (current + 1 >= source.length()) {
+    if (!ensure(2)) {
       return '\0';
     }
     return source.charAt(current + 1);
@@ -268,15 +382,48 @@ final class Scanner {
   }
 
   private void addToken(TokenType type) {
-    addToken(type, null);
+    tokens.add(type, offset + start, current - start, line);
   }
 
-  private void addToken(TokenType type, Object literal) {
-    String text = source.substring(start, current);
-    tokens.add(new Token(type, text, literal, line));
+  private boolean isAtEnd() {
+    return !ensure(1);
   }
 
-  private boolean isAtEnd() {
-    return current >= source.length();
+  /** Whether {@code n} more characters are available, reading more input if necessary. */
+  private boolean ensure(int n) {
+    while (current + n > source.length()) {
+      if (!refill()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Reads the next chunk of input, dropping the part of the window no token still needs. */
+  private boolean refill() {
+    if (reader == null || exhausted) {
+      return false;
+    }
+    int read;
+    try {
+      read = reader.read(chunk);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    if (read < 0) {
+      exhausted = true;
+      return false;
+    }
+    int keep = Math.min(start, tokens.firstStart() - offset);
+    source =
+        new StringBuilder(source.length() - keep + read)
+            .append(source, keep, source.length())
+            .append(chunk, 0, read)
+            .toString();
+    offset += keep;
+    start -= keep;
+    current -= keep;
+    tokens.setSource(source, offset);
+    return true;
   }
 }
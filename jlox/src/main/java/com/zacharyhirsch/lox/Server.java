@@ -0,0 +1,244 @@
+package com.zacharyhirsch.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * Runs scripts sent over a socket, so the JVM starts once and stays warm across requests.
+ *
+ * <p>Each connection is served on its own virtual thread and may carry any number of requests,
+ * handled one after another. A request is a kind byte, {@link #SOURCE} or {@link #PATH}, followed
+ * by a big-endian 32-bit length and that many bytes of UTF-8: the script itself, or the path of a
+ * script file on the server. The response is the status byte {@code jlox script} would exit with
+ * (0, 65, 66 or 70), then the length and bytes of the script's output, then the length and bytes
+ * of its error messages.
+ *
+ * <p>Every request runs in a fresh {@link Context}. Compiled programs are kept in a cache shared by
+ * all connections, keyed by a SHA-256 hash of the source so the source itself is not kept, and
+ * evicting the least recently used beyond a number of entries or a total weight. A program weighs
+ * as much as its source is long, a rough measure of the size of its tree.
+ *
+ * <p>A request that fails inside jlox, rather than in the script, is logged and answered with
+ * status 70 and the exception as its error message, and the connection stays open.
+ */
+final class Server {
+
+  static final byte SOURCE = 0;
+  static final byte PATH = 1;
+
+  private static final int MAX_REQUEST_BYTES = 64 << 20;
+
+  private final Engine engine;
+  private final ProgramLru programs;
+  private final Supplier<Diagnostics> diagnostics;
+
+  /**
+   * Serves requests, caching at most {@code cacheEntries} programs of at most {@code cacheWeight}
+   * in all, and collecting each request's errors in a new object from {@code diagnostics}.
+   */
+  Server(Engine engine, int cacheEntries, long cacheWeight, Supplier<Diagnostics> diagnostics) {
+    this.engine = engine;
+    this.programs = new ProgramLru(cacheEntries, cacheWeight);
+    this.diagnostics = diagnostics;
+  }
+
+  /** Parses {@code unix:<path>} as a Unix domain socket and anything else as a local TCP port. */
+  static SocketAddress address(String spec) {
+    if (spec.startsWith("unix:")) {
+      return UnixDomainSocketAddress.of(spec.substring("unix:".length()));
+    }
+    return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(spec));
+  }
+
+  /** Accepts connections on {@code address} until the process is killed. */
+  void serve(SocketAddress address) throws IOException {
+    ServerSocketChannel server;
+    if (address instanceof UnixDomainSocketAddress) {
+      Path path = ((UnixDomainSocketAddress) address).getPath();
+      Files.deleteIfExists(path);
+      server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+      path.toFile().deleteOnExit();
+    } else {
+      server = ServerSocketChannel.open();
+    }
+    try (server;
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      server.bind(address);
+      System.err.println("Listening on " + server.getLocalAddress());
+      while (true) {
+        SocketChannel channel = server.accept();
+        executor.execute(() -> handle(channel));
+      }
+    }
+  }
+
+  private void handle(SocketChannel channel) {
+    try (channel;
+        DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+        DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel))) {
+      while (true) {
+        int kind = in.read();
+        if (kind == -1) {
+          return;
+        }
+        int length = in.readInt();
+        if ((kind != SOURCE && kind != PATH) || length < 0 || length > MAX_REQUEST_BYTES) {
+          return;
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        respond(out, (byte) kind, new String(payload, StandardCharsets.UTF_8));
+      }
+    } catch (EOFException e) {
+      // The client went away mid-request.
+    } catch (IOException e) {
+      System.err.println("Connection failed: " + e.getMessage());
+    }
+  }
+
+  private void respond(DataOutputStream out, byte kind, String payload) throws IOException {
+    ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+    Diagnostics diagnostics = this.diagnostics.get();
+    int status;
+    try {
+      status = run(kind, payload, stdout, diagnostics);
+    } catch (RuntimeException | Error e) {
+      System.err.println("Request failed:");
+      e.printStackTrace();
+      stdout.reset();
+      diagnostics.note("Internal error: " + e);
+      status = 70;
+    }
+    byte[] errors = diagnostics.drain().getBytes(StandardCharsets.UTF_8);
+    out.writeByte(status);
+    out.writeInt(stdout.size());
+    stdout.writeTo(out);
+    out.writeInt(errors.length);
+    out.write(errors);
+    out.flush();
+  }
+
+  /** Runs one request, returning the status to answer it with. */
+  private int run(
+      byte kind, String payload, ByteArrayOutputStream stdout, Diagnostics diagnostics) {
+    int status = 0;
+    String source = payload;
+    if (kind == PATH) {
+      try {
+        source = Files.readString(Paths.get(payload), Charset.defaultCharset());
+      } catch (IOException | RuntimeException e) {
+        diagnostics.note("Could not read " + payload + ": " + e);
+        source = null;
+        status = 66;
+      }
+    }
+    if (source != null) {
+      byte[] key = ProgramCache.key(source, "");
+      Program program = programs.get(key);
+      if (program == null) {
+        program = engine.compile(source, diagnostics);
+        if (program != null) {
+          programs.put(key, program, source.length());
+        }
+      }
+      if (program != null) {
+        Context context = new Context(stdout, diagnostics);
+        context.run(program);
+        context.flush();
+      }
+      if (diagnostics.hadError()) {
+        status = 65;
+      } else if (diagnostics.hadRuntimeError()) {
+        status = 70;
+      }
+    }
+    return status;
+  }
+
+  /** A least-recently-used map from the hash of a source to its compiled program. */
+  private static final class ProgramLru {
+
+    private final Map<Key, Entry> programs = new LinkedHashMap<>(16, 0.75f, true);
+    private final int capacity;
+    private final long maxWeight;
+    private long weight = 0;
+
+    ProgramLru(int capacity, long maxWeight) {
+      this.capacity = capacity;
+      this.maxWeight = maxWeight;
+    }
+
+    synchronized Program get(byte[] key) {
+      Entry entry = programs.get(new Key(key));
+      return entry == null ? null : entry.program;
+    }
+
+    /** Caches {@code program} unless it weighs more than the whole cache may. */
+    synchronized void put(byte[] key, Program program, long weight) {
+      if (weight > maxWeight) {
+        return;
+      }
+      Entry old = programs.put(new Key(key), new Entry(program, weight));
+      this.weight += weight - (old == null ? 0 : old.weight);
+      Iterator<Entry> eldest = programs.values().iterator();
+      while (programs.size() > capacity || this.weight > maxWeight) {
+        this.weight -= eldest.next().weight;
+        eldest.remove();
+      }
+    }
+
+    private static final class Entry {
+
+      final Program program;
+      final long weight;
+
+      Entry(Program program, long weight) {
+        this.program = program;
+        this.weight = weight;
+      }
+    }
+
+    /** A hash, compared by its bytes. */
+    private static final class Key {
+
+      private final byte[] hash;
+
+      Key(byte[] hash) {
+        this.hash = hash;
+      }
+
+      @Override
+      public boolean equals(Object other) {
+        return other instanceof Key && Arrays.equals(hash, ((Key) other).hash);
+      }
+
+      @Override
+      public int hashCode() {
+        return Arrays.hashCode(hash);
+      }
+    }
+  }
+}
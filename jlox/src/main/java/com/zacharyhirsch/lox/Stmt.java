@@ -10,6 +10,7 @@ abstract class Stmt {
     R visitPrintStmt(Print stmt);
     R visitVarStmt(Var stmt);
   }
+  int depth = 0;
   static class Expression extends Stmt {
     Expression(Expr expression) {
       this.expression = expression;
@@ -47,6 +48,7 @@ abstract class Stmt {
 
     final Token name;
     final Expr initializer;
+    int slot = -1;
   }
 
   abstract <R> R accept(Visitor<R> visitor);
@@ -0,0 +1,92 @@
+package com.zacharyhirsch.lox;
+
+import java.util.Arrays;
+
+/**
+ * Identifiers interned to dense integer ids, so they can key {@link Resolver} slots and {@link
+ * Context} globals without hashing strings.
+ *
+ * <p>Ids are handed out from zero in the order names are first seen and never reused. They only
+ * mean something to the table that handed them out: each {@link Scanner} has its own, for the
+ * names in its source, and each context has its own, for the names of its globals. A table is
+ * freed along with whatever owns it, so names from sources that are no longer in use do not pile
+ * up in a long-running process. The scanner interns straight from its buffer, so an identifier
+ * that has been seen before costs no allocation.
+ *
+ * <p>The table is open addressing over an array of ids. It is not thread-safe.
+ */
+final class Symbols {
+
+  private static final int EMPTY = -1;
+
+  /** The ids, placed by the hash of their name. */
+  private int[] ids = empty(64);
+  /** The name of each id. Holds half as many entries as ids, which keeps ids at most half full. */
+  private String[] names = new String[32];
+  private int count = 0;
+
+  /** Returns the id of {@code name}. */
+  int intern(String name) {
+    return intern(name, 0, name.length());
+  }
+
+  /** Returns the id of the identifier {@code text.substring(start, end)}. */
+  int intern(String text, int start, int end) {
+    int mask = ids.length - 1;
+    int i = hash(text, start, end) & mask;
+    for (; ids[i] != EMPTY; i = (i + 1) & mask) {
+      String name = names[ids[i]];
+      if (name.length() == end - start && name.regionMatches(0, text, start, end - start)) {
+        return ids[i];
+      }
+    }
+    if (count == names.length) {
+      grow();
+      return intern(text, start, end);
+    }
+    int id = count++;
+    names[id] = text.substring(start, end);
+    ids[i] = id;
+    return id;
+  }
+
+  /** Returns the name of a symbol that {@link #intern} returned. */
+  String name(int id) {
+    return names[id];
+  }
+
+  private void grow() {
+    ids = empty(ids.length * 2);
+    names = Arrays.copyOf(names, names.length * 2);
+    int mask = ids.length - 1;
+    for (int id = 0; id < count; id++) {
+      String name = names[id];
+      int i = hash(name, 0, name.length()) & mask;
+      while (ids[i] != EMPTY) {
+        i = (i + 1) & mask;
+      }
+      ids[i] = id;
+    }
+  }
+
+  private static int[] empty(int capacity) {
+    int[] ids = new int[capacity];
+    Arrays.fill(ids, EMPTY);
+    return ids;
+  }
+
+  /** Spreads the bits of a symbol, for tables keyed by symbol rather than by name. */
+  static int hash(int symbol) {
+    int hash = symbol * 0x9E3779B9;
+    return hash ^ (hash >>> 16);
+  }
+
+  /** Hashes like {@link String#hashCode}, then spreads the bits for a power-of-two table. */
+  private static int hash(String text, int start, int end) {
+    int hash = 0;
+    for (int i = start; i < end; i++) {
+      hash = 31 * hash + text.charAt(i);
+    }
+    return hash ^ (hash >>> 16);
+  }
+}
@@ -2,16 +2,25 @@ package com.zacharyhirsch.lox;
 
 final class Token {
 
+    /** The {@link #symbol} of tokens that are not identifiers. */
+    static final int NO_SYMBOL = -1;
+
     final TokenType type;
     final String lexeme;
     final Object literal;
     final int line;
+    /**
+     * For an identifier, the id its name was interned to, in the {@link Symbols} of the scanner or
+     * reader that made it; only tokens from the same one can be compared by symbol.
+     */
+    final int symbol;
 
-    Token(TokenType type, String lexeme, Object literal, int line) {
+    Token(TokenType type, String lexeme, Object literal, int line, int symbol) {
         this.type = type;
         this.lexeme = lexeme;
         this.literal = literal;
         this.line = line;
+        this.symbol = symbol;
     }
 
     public String toString() {
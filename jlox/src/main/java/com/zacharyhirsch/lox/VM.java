@@ -0,0 +1,206 @@
+package com.zacharyhirsch.lox;
+
+/** A stack machine that runs {@link Chunk}s produced by the {@link Compiler}. */
+final class VM {
+
+  private final Environment globals;
+  private final Output out;
+  private final Diagnostics diagnostics;
+
+  VM(Environment globals, Output out, Diagnostics diagnostics) {
+    this.globals = globals;
+    this.out = out;
+    this.diagnostics = diagnostics;
+  }
+
+  /** The offset of the instruction that raised the last runtime error. */
+  private int failedAt = 0;
+
+  /**
+   * Runs {@code chunk}, returning how many of its top-level statements completed before any
+   * runtime error stopped it.
+   */
+  int interpret(Chunk chunk) {
+    try {
+      run(chunk);
+      return chunk.statementCount;
+    } catch (RuntimeError error) {
+      diagnostics.runtimeError(error);
+      return chunk.statementsBefore(failedAt);
+    }
+  }
+
+  private void run(Chunk chunk) {
+    byte[] code = chunk.code;
+    Token[] tokens = chunk.tokens;
+    Object[] constants = chunk.constants;
+    Object[] stack = new Object[chunk.maxStack];
+    int sp = 0;
+    int ip = 0;
+    int start = 0;
+
+    try {
+      while (true) {
+        start = ip;
+        switch (code[ip++]) {
+          case OpCode.CONSTANT:
+            stack[sp++] = constants[readOperand(code, ip)];
+            ip += 3;
+            break;
+          case OpCode.NIL:
+            stack[sp++] = null;
+            break;
+          case OpCode.TRUE:
+            stack[sp++] = true;
+            break;
+          case OpCode.FALSE:
+            stack[sp++] = false;
+            break;
+          case OpCode.POP:
+            sp--;
+            break;
+          case OpCode.DEFINE_GLOBAL:
+            globals.define(readOperand(code, ip), stack[--sp]);
+            ip += 3;
+            break;
+          case OpCode.GET_GLOBAL:
+            stack[sp++] = globals.get(tokens[start], readOperand(code, ip));
+            ip += 3;
+            break;
+          case OpCode.SET_GLOBAL:
+            globals.assign(tokens[start], readOperand(code, ip), stack[sp - 1]);
+            ip += 3;
+            break;
+          case OpCode.EQUAL:
+            {
+              Object right = stack[--sp];
+              stack[sp - 1] = Interpreter.isEqual(stack[sp - 1], right);
+              break;
+            }
+          case OpCode.NOT_EQUAL:
+            {
+              Object right = stack[--sp];
+              stack[sp - 1] = !Interpreter.isEqual(stack[sp - 1], right);
+              break;
+            }
+          case OpCode.GREATER:
+            {
+              Object right = stack[--sp];
+              Object left = stack[sp - 1];
+              checkNumberOperands(tokens[start], left, right);
+              stack[sp - 1] = (double) left > (double) right;
+              break;
+            }
+          case OpCode.GREATER_EQUAL:
+            {
+              Object right = stack[--sp];
+              Object left = stack[sp - 1];
+              checkNumberOperands(tokens[start], left, right);
+              stack[sp - 1] = (double) left >= (double) right;
+              break;
+            }
+          case OpCode.LESS:
+            {
+              Object right = stack[--sp];
+              Object left = stack[sp - 1];
+              checkNumberOperands(tokens[start], left, right);
+              stack[sp - 1] = (double) left < (double) right;
+              break;
+            }
+          case OpCode.LESS_EQUAL:
+            {
+              Object right = stack[--sp];
+              Object left = stack[sp - 1];
+              checkNumberOperands(tokens[start], left, right);
+              stack[sp - 1] = (double) left <= (double) right;
+              break;
+            }
+          case OpCode.ADD:
+            {
+              Object right = stack[--sp];
+              Object left = stack[sp - 1];
+              if (left instanceof Double && right instanceof Double) {
+                stack[sp - 1] = (double) left + (double) right;
+              } else if (Rope.isString(left) || Rope.isString(right)) {
+                stack[sp - 1] = Rope.concat(left, right);
+              } else {
+                throw new RuntimeError(
+                    tokens[start], "Operands must be two numbers or at least one string.");
+              }
+              break;
+            }
+          case OpCode.SUBTRACT:
+            {
+              Object right = stack[--sp];
+              Object left = stack[sp - 1];
+              checkNumberOperands(tokens[start], left, right);
+              stack[sp - 1] = (double) left - (double) right;
+              break;
+            }
+          case OpCode.MULTIPLY:
+            {
+              Object right = stack[--sp];
+              Object left = stack[sp - 1];
+              checkNumberOperands(tokens[start], left, right);
+              stack[sp - 1] = (double) left * (double) right;
+              break;
+            }
+          case OpCode.DIVIDE:
+            {
+              Object right = stack[--sp];
+              Object left = stack[sp - 1];
+              checkNumberOperands(tokens[start], left, right);
+              double divisor = (double) right;
+              if (divisor == 0) {
+                throw new RuntimeError(tokens[start], "Division by zero.");
+              }
+              stack[sp - 1] = (double) left / divisor;
+              break;
+            }
+          case OpCode.NOT:
+            stack[sp - 1] = !Interpreter.isTruthy(stack[sp - 1]);
+            break;
+          case OpCode.NEGATE:
+            if (!(stack[sp - 1] instanceof Double)) {
+              throw new RuntimeError(tokens[start], "Operand must be a number.");
+            }
+            stack[sp - 1] = -(double) stack[sp - 1];
+            break;
+          case OpCode.PRINT:
+            out.printValue(stack[--sp]);
+            break;
+          case OpCode.JUMP:
+            ip += readOperand(code, ip);
+            ip += 3;
+            break;
+          case OpCode.JUMP_IF_FALSE:
+            if (!Interpreter.isTruthy(stack[--sp])) {
+              ip += readOperand(code, ip);
+            }
+            ip += 3;
+            break;
+          case OpCode.RETURN:
+            return;
+          default:
+            throw new IllegalStateException("Unknown opcode " + code[start] + ".");
+        }
+      }
+    } catch (RuntimeError error) {
+      failedAt = start;
+      throw error;
+    }
+  }
+
+  private static int readOperand(byte[] code, int offset) {
+    return ((code[offset] & 0xff) << 16)
+        | ((code[offset + 1] & 0xff) << 8)
+        | (code[offset + 2] & 0xff);
+  }
+
+  private static void checkNumberOperands(Token operator, Object left, Object right) {
+    if (left instanceof Double && right instanceof Double) {
+      return;
+    }
+    throw new RuntimeError(operator, "Operands must be numbers.");
+  }
+}
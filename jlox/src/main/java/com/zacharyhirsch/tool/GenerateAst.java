@@ -17,24 +17,32 @@ public class GenerateAst {
     defineAst(
         outputDir,
         "Expr",
+        "",
         Arrays.asList(
-            "Assign   : Token name, Expr value",
-            "Binary   : Expr left, Token operator, Expr right",
+            "Assign   : Token name, Expr value | int slot = -1",
+            "Binary   : Expr left, Token operator, Expr right"
+                + " | BinarySpecialization specialization = BinarySpecialization.UNINITIALIZED",
             "Grouping : Expr expression",
             "Literal  : Object value",
             "Unary    : Token operator, Expr right",
             "Ternary  : Expr predicate, Expr t, Expr f",
-            "Variable : Token name"));
+            "Variable : Token name | int slot = -1"));
     defineAst(
         outputDir,
         "Stmt",
+        "int depth = 0",
         Arrays.asList(
             "Expression : Expr expression",
             "Print      : Expr expression",
-            "Var        : Token name, Expr initializer"));
+            "Var        : Token name, Expr initializer | int slot = -1"));
   }
 
-  private static void defineAst(String outputDir, String baseName, List<String> types)
+  /**
+   * Writes the base class of an AST and its subclasses. {@code annotations} are mutable fields on
+   * the base class, like the ones after a {@code |} in a type, separated by commas.
+   */
+  private static void defineAst(
+      String outputDir, String baseName, String annotations, List<String> types)
       throws IOException {
     String path = outputDir + "/" + baseName + ".java";
     try (PrintWriter writer = new PrintWriter(path, StandardCharsets.UTF_8)) {
@@ -48,6 +56,12 @@ public class GenerateAst {
 
       defineVisitor(writer, baseName, types);
 
+      if (!annotations.isEmpty()) {
+        for (String field : annotations.split(", ")) {
+          writer.println("  " + field + ";");
+        }
+      }
+
       for (String type : types) {
         String className = type.split(":")[0].trim();
         String fields = type.split(":")[1].trim();
@@ -80,8 +94,15 @@ public class GenerateAst {
     writer.println("  }");
   }
 
+  /**
+   * Writes one subclass of the AST. Fields after a {@code |} are mutable annotations filled in by
+   * later passes rather than by the parser, so they are left out of the constructor.
+   */
   private static void defineType(
-      PrintWriter writer, String baseName, String className, String fields) {
+      PrintWriter writer, String baseName, String className, String spec) {
+    String fields = spec.split("\\|")[0].trim();
+    String annotations = spec.contains("|") ? spec.split("\\|")[1].trim() : "";
+
     writer.println("  static class " + className + " extends " + baseName + " {");
 
     writer.println("    " + className + "(" + fields + ") {");
@@ -101,6 +122,11 @@ public class GenerateAst {
     for (String field : fields.split(", ")) {
       writer.println("    final " + field + ";");
     }
+    if (!annotations.isEmpty()) {
+      for (String field : annotations.split(", ")) {
+        writer.println("    " + field + ";");
+      }
+    }
 
     writer.println("  }");
   }
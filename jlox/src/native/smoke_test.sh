@@ -0,0 +1,25 @@
+#!/bin/bash
+# Runs every script in examples/ on each engine with both jlox on the JVM and its native image,
+# and fails if their output, errors or exit status differ.
+set -uo pipefail
+
+runfiles="${RUNFILES_DIR:-$0.runfiles}/__main__"
+out="${TEST_TMPDIR:-$(mktemp -d)}"
+
+failures=0
+for script in "$runfiles"/examples/*.lox; do
+  for engine in tree vm jit; do
+    name="$(basename "$script" .lox).$engine"
+    for binary in jlox jlox_native; do
+      "$runfiles/$binary" --engine="$engine" "$script" > "$out/$name.$binary" 2>&1
+      echo "exit status $?" >> "$out/$name.$binary"
+    done
+    if diff -u "$out/$name.jlox" "$out/$name.jlox_native"; then
+      echo "PASS $name"
+    else
+      echo "FAIL $name"
+      failures=$((failures + 1))
+    fi
+  done
+done
+exit $((failures > 0))
@@ -0,0 +1,40 @@
+#!/bin/bash
+# Compares how long jlox takes to start and run a short script, and how much memory it uses, on
+# the JVM and as a native image. Usage: bazel run //:native_startup -- [runs] [script]
+#
+# Peak resident set sizes are measured with GNU time, and left out without it.
+set -euo pipefail
+
+export RUNFILES_DIR="${RUNFILES_DIR:-$0.runfiles}"
+runfiles="$RUNFILES_DIR/__main__"
+runs="${1:-20}"
+script="${2:-$runfiles/examples/a.lox}"
+
+# Prints the mean wall time of running the rest of the arguments, in milliseconds.
+measure() {
+  "$@" "$script" > /dev/null
+  local start end
+  start=$(date +%s%N)
+  for ((i = 0; i < runs; i++)); do
+    "$@" "$script" > /dev/null
+  done
+  end=$(date +%s%N)
+  echo $(((end - start) / runs / 1000000))
+}
+
+# Prints the peak resident set size of running the rest of the arguments once, in MiB.
+peak_rss() {
+  if [[ ! -x /usr/bin/time ]]; then
+    echo "?"
+    return
+  fi
+  local kb
+  kb=$(/usr/bin/time -f %M "$@" "$script" 2>&1 > /dev/null | tail -n 1)
+  echo $((kb / 1024))
+}
+
+echo "$(basename "$script"), mean of $runs runs:"
+for binary in jlox jlox_native; do
+  printf "  %-12s %5s ms, %4s MiB peak RSS\n" "$binary:" \
+    "$(measure "$runfiles/$binary")" "$(peak_rss "$runfiles/$binary")"
+done